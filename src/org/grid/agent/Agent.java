@@ -26,12 +26,13 @@ import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Set;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.grid.agent.sample.SampleAgent;
+import org.grid.protocol.Mailbox;
 import org.grid.protocol.Message;
 import org.grid.protocol.Neighborhood;
 import org.grid.protocol.ProtocolSocket;
+import org.grid.protocol.ProtocolThreads;
 import org.grid.protocol.Message.Direction;
 import org.grid.protocol.Message.ReceiveMessage;
 import org.grid.protocol.Message.StateMessage;
@@ -45,6 +46,13 @@ import org.grid.protocol.Message.StateMessage;
  * To run the sample agent type: java -cp bin/ fri.pipt.agent.Agent localhost
  * fri.pipt.agent.sample.SampleAgent
  * 
+ * When many agents are launched from a single process, set the system property
+ * <tt>fri.pipt.protocol.threads</tt> to <tt>virtual</tt> to run the protocol and
+ * agent threads as virtual threads (requires a JVM that supports them). Set
+ * <tt>fri.pipt.protocol.delta</tt> to <tt>true</tt> to receive only the
+ * changes between consecutive scans from the server. When the server hosts
+ * several games, set <tt>fri.pipt.protocol.game</tt> to the id of the game.
+ * 
  * @author lukacu
  * @see SampleAgent
  */
@@ -69,9 +77,9 @@ public abstract class Agent {
 			protectedClassPrefixes.add("sun.");
 			protectedClassPrefixes.add("java.");
 			protectedClassPrefixes.add("javax.");
-			protectedClassPrefixes.add("fri.pipt.agent.Agent");
-			protectedClassPrefixes.add("fri.pipt.protocol");
-			protectedClassPrefixes.add("fri.pipt.arena");
+			protectedClassPrefixes.add("org.grid.agent.Agent");
+			protectedClassPrefixes.add("org.grid.protocol");
+			protectedClassPrefixes.add("org.grid.arena");
 		}
 
 		public Class<?> loadClass(String className)
@@ -142,7 +150,7 @@ public abstract class Agent {
 	private static class ClientProtocolSocket extends ProtocolSocket implements
 			Runnable {
 
-		private ConcurrentLinkedQueue<Message> inbox = new ConcurrentLinkedQueue<Message>();
+		private Mailbox<Message> inbox = new Mailbox<Message>(4096);
 
 		private Status status = Status.UNKNOWN;
 
@@ -151,6 +159,10 @@ public abstract class Agent {
 		private boolean terminated = false;
 
 		private String name;
+		
+		private boolean deltaState = Boolean.getBoolean("fri.pipt.protocol.delta");
+		
+		private Neighborhood lastState = null;
 
 		public ClientProtocolSocket(Socket sck, String name) throws IOException {
 			super(sck);
@@ -171,7 +183,9 @@ public abstract class Agent {
 				passphrase = passphraseOverride;
 			}
 
-			sendMessage(new Message.RegisterMessage(team, passphrase));
+			sendMessage(new Message.RegisterMessage(team, passphrase, 
+					deltaState ? Message.RegisterMessage.FEATURE_DELTA_STATE : 0,
+					System.getProperty("fri.pipt.protocol.game")));
 
 			this.name = name;
 
@@ -221,6 +235,10 @@ public abstract class Agent {
 						}
 
 						sendMessage(new Message.AcknowledgeMessage());
+						
+						// the server accepts the subscription only after the acknowledgment
+						if (agent.subscription >= 0)
+							sendMessage(new Message.SubscribeMessage(agent.subscription));
 
 						status = Status.INITIALIZED;
 						
@@ -235,18 +253,32 @@ public abstract class Agent {
 				break;
 
 			case INITIALIZED:
-				if (message instanceof Message.StateMessage)
-					super.handleMessage(message);
-
+				if (message instanceof Message.StateDeltaMessage) {
+					
+					Message.StateDeltaMessage delta = (Message.StateDeltaMessage) message;
+					
+					if (lastState == null)
+						break;
+					
+					lastState = Neighborhood.apply(lastState, delta.getShiftX(), delta.getShiftY(), delta.getChanges());
+					
+					Message.StateMessage state = new Message.StateMessage(delta.getDirection(), 
+							new Neighborhood(lastState), delta.hasFlag());
+					state.setStamp(delta.getStamp());
+					message = state;
+					
+				} else if (deltaState && message instanceof Message.StateMessage) {
+					
+					Neighborhood n = ((Message.StateMessage) message).getNeighborhood();
+					
+					lastState = n == null ? null : new Neighborhood(n);
+					
+				}
+				
 				if ((message instanceof Message.ReceiveMessage)
 						|| (message instanceof Message.StateMessage)) {
 
-					synchronized (inbox) {
-
-						inbox.add(message);
-						inbox.notifyAll();
-
-					}
+					inbox.put(message);
 
 				}
 
@@ -259,6 +291,7 @@ public abstract class Agent {
 					}
 
 					agent = null;
+					lastState = null;
 					status = Status.REGISTERED;
 
 				}
@@ -293,23 +326,20 @@ public abstract class Agent {
 
 		@Override
 		public void run() {
-			Thread messages = new Thread(new Runnable() {
+			Thread messages = ProtocolThreads.newThread(new Runnable() {
 
 				@Override
 				public void run() {
 
 					while (true) {
 
-						synchronized (inbox) {
-							while (inbox.isEmpty()) {
-								try {
-									inbox.wait();
-								} catch (InterruptedException e) {
-								}
-							}
-						}
+						Message msg;
 
-						Message msg = inbox.poll();
+						try {
+							msg = inbox.take();
+						} catch (InterruptedException e) {
+							continue;
+						}
 
 						if (agent != null && isAlive()) {
 							try {
@@ -384,13 +414,13 @@ public abstract class Agent {
 			
 			ClientProtocolSocket client = new ClientProtocolSocket(socket,
 					"Client " + i);
+			client.start();
 
 			try {
 				Thread.sleep(100);
 			} catch (InterruptedException e) {}
 			
-			Thread thread = new Thread(client);
-			thread.setName(client.getName());
+			Thread thread = ProtocolThreads.newThread(client, client.getName());
 			thread.start();
 
 			clients.add(client);
@@ -423,6 +453,8 @@ public abstract class Agent {
 
 	private int id;
 
+	private volatile int subscription = -1;
+
 	private int maxMessageSize;
 
 	private int gameSpeed;
@@ -513,6 +545,27 @@ public abstract class Agent {
 
 	}
 
+	/**
+	 * Asks the server to send the state of the agent after every given number
+	 * of steps, so that the agent does not have to call {@link #scan(int)}. 
+	 * The states are returned using the 
+	 * {@link #state(int, Neighborhood, Direction, boolean)} callback with the
+	 * step as the stamp. Can also be called in {@link #initialize()}.
+	 * 
+	 * @param interval
+	 *            the number of steps between two states, 0 to cancel
+	 */
+	public final void subscribe(int interval) {
+
+		subscription = Math.max(0, interval);
+		
+		if (!isAlive())
+			return;
+
+		client.sendMessage(new Message.SubscribeMessage(subscription));
+
+	}
+
 	/**
 	 * Called when a new message arrives. Should execute quickly.
 	 * 
@@ -524,7 +577,8 @@ public abstract class Agent {
 	public abstract void receive(int from, byte[] message);
 
 	/**
-	 * Called as a result of a {@link #scan(int)} instruction
+	 * Called as a result of a {@link #scan(int)} instruction or after a step
+	 * if the agent has subscribed to the state with {@link #subscribe(int)}
 	 * 
 	 * @param stamp
 	 *            the stamp of the request
@@ -0,0 +1,472 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.protocol;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.grid.protocol.Message.AcknowledgeMessage;
+import org.grid.protocol.Message.Direction;
+import org.grid.protocol.Message.InitializeMessage;
+import org.grid.protocol.Message.MoveMessage;
+import org.grid.protocol.Message.ReceiveMessage;
+import org.grid.protocol.Message.RegisterMessage;
+import org.grid.protocol.Message.ScanMessage;
+import org.grid.protocol.Message.SendMessage;
+import org.grid.protocol.Message.StateDeltaMessage;
+import org.grid.protocol.Message.StateMessage;
+import org.grid.protocol.Message.SubscribeMessage;
+import org.grid.protocol.Message.TerminateMessage;
+
+/**
+ * Compact binary encoding of protocol messages that is used instead of Java
+ * serialization when both sides support it. Every message is written as a
+ * frame that consists of a 4-byte length, a 1-byte opcode and the payload of
+ * the message.
+ *
+ * A client that wants to use this encoding announces it by sending
+ * {@link #MAGIC} and {@link #VERSION} before the first frame. A serialized
+ * stream starts with a different header, so the server can tell the two
+ * apart and still serve old clients.
+ */
+public class BinaryCodec {
+
+	public static final int MAGIC = 0x47524944;
+
+	public static final int VERSION = 1;
+
+	public static final int MAX_FRAME_SIZE = 1 << 20;
+
+	public static final byte REGISTER = 1;
+
+	public static final byte ACKNOWLEDGE = 2;
+
+	public static final byte INITIALIZE = 3;
+
+	public static final byte TERMINATE = 4;
+
+	public static final byte SCAN = 5;
+
+	public static final byte STATE = 6;
+
+	public static final byte MOVE = 7;
+
+	public static final byte SEND = 8;
+
+	public static final byte RECEIVE = 9;
+
+	public static final byte STATE_DELTA = 10;
+
+	public static final byte SUBSCRIBE = 11;
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	/**
+	 * Reads frames from a blocking input stream.
+	 */
+	public static class Reader {
+
+		private DataInputStream in;
+
+		private byte[] buffer = new byte[256];
+
+		public Reader(InputStream in) {
+			this.in = new DataInputStream(in);
+		}
+
+		public Message read() throws IOException {
+
+			int length = in.readInt();
+
+			if (length < 1 || length > MAX_FRAME_SIZE)
+				throw new ProtocolException("Illegal frame length: " + length);
+
+			if (buffer.length < length)
+				buffer = new byte[Math.max(length, buffer.length * 2)];
+
+			in.readFully(buffer, 0, length);
+
+			return decode(ByteBuffer.wrap(buffer, 0, length));
+
+		}
+
+		public void close() throws IOException {
+			in.close();
+		}
+
+	}
+
+	/**
+	 * Writes frames to a blocking output stream. Frames are encoded to a
+	 * reusable buffer and reach the stream with a single write when the writer
+	 * is flushed.
+	 */
+	public static class Writer {
+
+		private OutputStream out;
+
+		private ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+		public Writer(OutputStream out) {
+			this.out = out;
+		}
+
+		public void writePreface() throws IOException {
+
+			ensureCapacity(5);
+			buffer.putInt(MAGIC);
+			buffer.put((byte) VERSION);
+
+		}
+
+		public void write(Message message) throws IOException {
+
+			ensureCapacity(getFrameSize(message));
+
+			encode(message, buffer);
+
+		}
+
+		public void flush() throws IOException {
+
+			if (buffer.position() > 0) {
+				out.write(buffer.array(), 0, buffer.position());
+				buffer.clear();
+			}
+
+			out.flush();
+		}
+
+		public void close() throws IOException {
+			out.close();
+		}
+
+		private void ensureCapacity(int size) {
+
+			if (buffer.remaining() >= size)
+				return;
+
+			ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.position() + size, buffer.capacity() * 2));
+			buffer.flip();
+			larger.put(buffer);
+			buffer = larger;
+
+		}
+
+	}
+
+	/**
+	 * Returns the number of bytes needed to encode the message, including the
+	 * frame header.
+	 *
+	 * @param message the message
+	 * @return the size of the frame in bytes
+	 */
+	public static int getFrameSize(Message message) {
+
+		int size = 5;
+
+		if (message instanceof RegisterMessage) {
+			size += getStringSize(((RegisterMessage) message).getTeam());
+			size += getStringSize(((RegisterMessage) message).getPassphrase());
+			size += 4;
+			size += getStringSize(((RegisterMessage) message).getGame());
+		} else if (message instanceof InitializeMessage) {
+			size += 12;
+		} else if (message instanceof ScanMessage) {
+			size += 4;
+		} else if (message instanceof SubscribeMessage) {
+			size += 4;
+		} else if (message instanceof StateMessage) {
+			size += 7;
+			Neighborhood n = ((StateMessage) message).getNeighborhood();
+			if (n != null)
+				size += n.getEncodedSize();
+		} else if (message instanceof StateDeltaMessage) {
+			size += 14 + ((StateDeltaMessage) message).getChanges().length * 4;
+		} else if (message instanceof MoveMessage) {
+			size += 1;
+		} else if (message instanceof SendMessage) {
+			size += 8 + Math.max(0, ((SendMessage) message).getLength());
+		} else if (message instanceof ReceiveMessage) {
+			size += 8 + Math.max(0, ((ReceiveMessage) message).getLength());
+		}
+
+		return size;
+	}
+
+	/**
+	 * Encodes a message as a frame. The buffer must have at least
+	 * {@link #getFrameSize(Message)} bytes remaining.
+	 *
+	 * @param message the message to encode
+	 * @param buffer the destination buffer
+	 */
+	public static void encode(Message message, ByteBuffer buffer) {
+
+		int start = buffer.position();
+
+		buffer.putInt(0);
+
+		if (message instanceof RegisterMessage) {
+			buffer.put(REGISTER);
+			putString(buffer, ((RegisterMessage) message).getTeam());
+			putString(buffer, ((RegisterMessage) message).getPassphrase());
+			buffer.putInt(((RegisterMessage) message).getFeatures());
+			putString(buffer, ((RegisterMessage) message).getGame());
+		} else if (message instanceof AcknowledgeMessage) {
+			buffer.put(ACKNOWLEDGE);
+		} else if (message instanceof InitializeMessage) {
+			buffer.put(INITIALIZE);
+			buffer.putInt(((InitializeMessage) message).getId());
+			buffer.putInt(((InitializeMessage) message).getMaxMessageSize());
+			buffer.putInt(((InitializeMessage) message).getGameSpeed());
+		} else if (message instanceof TerminateMessage) {
+			buffer.put(TERMINATE);
+		} else if (message instanceof ScanMessage) {
+			buffer.put(SCAN);
+			buffer.putInt(((ScanMessage) message).getStamp());
+		} else if (message instanceof SubscribeMessage) {
+			buffer.put(SUBSCRIBE);
+			buffer.putInt(((SubscribeMessage) message).getInterval());
+		} else if (message instanceof StateMessage) {
+			StateMessage state = (StateMessage) message;
+			buffer.put(STATE);
+			buffer.putInt(state.getStamp());
+			putDirection(buffer, state.getDirection());
+			buffer.put((byte) (state.hasFlag() ? 1 : 0));
+			if (state.getNeighborhood() != null) {
+				buffer.put((byte) 1);
+				state.getNeighborhood().encode(buffer);
+			} else buffer.put((byte) 0);
+		} else if (message instanceof StateDeltaMessage) {
+			StateDeltaMessage delta = (StateDeltaMessage) message;
+			buffer.put(STATE_DELTA);
+			buffer.putInt(delta.getStamp());
+			putDirection(buffer, delta.getDirection());
+			buffer.put((byte) (delta.hasFlag() ? 1 : 0));
+			buffer.putShort((short) delta.getShiftX());
+			buffer.putShort((short) delta.getShiftY());
+			buffer.putInt(delta.getChanges().length / 2);
+			for (int c : delta.getChanges())
+				buffer.putInt(c);
+		} else if (message instanceof MoveMessage) {
+			buffer.put(MOVE);
+			putDirection(buffer, ((MoveMessage) message).getDirection());
+		} else if (message instanceof SendMessage) {
+			buffer.put(SEND);
+			buffer.putInt(((SendMessage) message).getTo());
+			putPayload(buffer, ((SendMessage) message).getPayload());
+		} else if (message instanceof ReceiveMessage) {
+			buffer.put(RECEIVE);
+			buffer.putInt(((ReceiveMessage) message).getFrom());
+			putPayload(buffer, ((ReceiveMessage) message).getPayload());
+		} else throw new IllegalArgumentException("Unsupported message: " + message);
+
+		buffer.putInt(start, buffer.position() - start - 4);
+
+	}
+
+	/**
+	 * Decodes a single frame. The buffer must contain the opcode and the
+	 * payload of the frame, the length prefix is expected to be already consumed.
+	 *
+	 * @param frame the frame content
+	 * @return decoded message
+	 * @throws ProtocolException if the frame is not valid
+	 */
+	public static Message decode(ByteBuffer frame) throws ProtocolException {
+
+		try {
+
+			byte opcode = frame.get();
+
+			switch (opcode) {
+			case REGISTER: {
+				String team = getString(frame);
+				String passphrase = getString(frame);
+				int features = frame.remaining() >= 4 ? frame.getInt() : 0;
+				String game = frame.remaining() >= 2 ? getString(frame) : null;
+				return new RegisterMessage(team, passphrase, features, game);
+			}
+			case ACKNOWLEDGE:
+				return new AcknowledgeMessage();
+			case INITIALIZE: {
+				int id = frame.getInt();
+				int maxMessageSize = frame.getInt();
+				int gameSpeed = frame.getInt();
+				return new InitializeMessage(id, maxMessageSize, gameSpeed);
+			}
+			case TERMINATE:
+				return new TerminateMessage();
+			case SCAN:
+				return new ScanMessage(frame.getInt());
+			case SUBSCRIBE:
+				return new SubscribeMessage(frame.getInt());
+			case STATE: {
+				int stamp = frame.getInt();
+				Direction direction = getDirection(frame);
+				boolean hasFlag = frame.get() != 0;
+				Neighborhood neighborhood = frame.get() != 0 ? Neighborhood.decode(frame) : null;
+				StateMessage state = new StateMessage(direction, neighborhood, hasFlag);
+				state.setStamp(stamp);
+				return state;
+			}
+			case STATE_DELTA: {
+				int stamp = frame.getInt();
+				Direction direction = getDirection(frame);
+				boolean hasFlag = frame.get() != 0;
+				int shiftX = frame.getShort();
+				int shiftY = frame.getShort();
+				int count = frame.getInt();
+				if (count < 0 || count > frame.remaining() / 8)
+					throw new ProtocolException("Illegal number of changes: " + count);
+				int[] changes = new int[count * 2];
+				for (int i = 0; i < changes.length; i++)
+					changes[i] = frame.getInt();
+				StateDeltaMessage delta = new StateDeltaMessage(direction, hasFlag, shiftX, shiftY, changes);
+				delta.setStamp(stamp);
+				return delta;
+			}
+			case MOVE:
+				return new MoveMessage(getDirection(frame));
+			case SEND: {
+				int to = frame.getInt();
+				int length = frame.getInt();
+				if (length < 0)
+					return new SendMessage(to, (byte[]) null);
+				// the frame wraps a reused buffer, never read past its end
+				if (length > frame.remaining())
+					throw new ProtocolException("Illegal payload length: " + length);
+				// the payload is relayed to another client, keep it in a pooled buffer
+				ByteBuffer payload = BufferPool.acquire(length);
+				try {
+					int limit = frame.limit();
+					frame.limit(frame.position() + length);
+					payload.put(frame);
+					frame.limit(limit);
+					payload.flip();
+					return new SendMessage(to, payload);
+				} catch (RuntimeException e) {
+					BufferPool.release(payload);
+					throw e;
+				}
+			}
+			case RECEIVE: {
+				int from = frame.getInt();
+				return new ReceiveMessage(from, getBytes(frame));
+			}
+			default:
+				throw new ProtocolException("Unknown opcode: " + opcode);
+			}
+
+		} catch (RuntimeException e) {
+			throw new ProtocolException("Malformed frame: " + e);
+		}
+	}
+
+	/**
+	 * Checks if the given 4 bytes are the preface of the binary encoding.
+	 */
+	public static boolean isPreface(byte[] header) {
+
+		return header.length >= 4 && ByteBuffer.wrap(header).getInt() == MAGIC;
+
+	}
+
+	private static int getStringSize(String value) {
+		return value == null ? 2 : 2 + value.getBytes(CHARSET).length;
+	}
+
+	private static void putString(ByteBuffer buffer, String value) {
+
+		if (value == null) {
+			buffer.putShort((short) -1);
+			return;
+		}
+
+		byte[] data = value.getBytes(CHARSET);
+		buffer.putShort((short) data.length);
+		buffer.put(data);
+
+	}
+
+	private static String getString(ByteBuffer buffer) {
+
+		int length = buffer.getShort();
+
+		if (length < 0)
+			return null;
+
+		byte[] data = new byte[length];
+		buffer.get(data);
+		return new String(data, CHARSET);
+
+	}
+
+	private static void putPayload(ByteBuffer buffer, ByteBuffer payload) {
+
+		if (payload == null) {
+			buffer.putInt(-1);
+			return;
+		}
+
+		int position = payload.position();
+		buffer.putInt(payload.remaining());
+		buffer.put(payload);
+		payload.position(position);
+
+	}
+
+	private static byte[] getBytes(ByteBuffer buffer) {
+
+		int length = buffer.getInt();
+
+		if (length < 0)
+			return null;
+
+		if (length > buffer.remaining())
+			throw new BufferUnderflowException();
+
+		byte[] data = new byte[length];
+		buffer.get(data);
+		return data;
+
+	}
+
+	private static void putDirection(ByteBuffer buffer, Direction direction) {
+		buffer.put((byte) (direction == null ? -1 : direction.ordinal()));
+	}
+
+	private static Direction getDirection(ByteBuffer buffer) {
+
+		int ordinal = buffer.get();
+
+		return ordinal < 0 ? null : DIRECTIONS[ordinal];
+
+	}
+
+}
@@ -0,0 +1,129 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of buffers for message payloads. Buffers are grouped by capacity in
+ * powers of two. Set the system property <tt>fri.pipt.protocol.direct</tt> to
+ * <tt>true</tt> to allocate direct buffers.
+ *
+ * A buffer that is not released is simply collected, so releasing is an
+ * optimization and not a requirement.
+ */
+public class BufferPool {
+
+	private static final int MIN_SHIFT = 6;
+
+	private static final int MAX_SHIFT = 16;
+
+	private static final int MAX_POOLED = 1024;
+
+	private static final boolean direct = Boolean.getBoolean("fri.pipt.protocol.direct");
+
+	private static final ArrayList<ConcurrentLinkedQueue<ByteBuffer>> buckets = new ArrayList<ConcurrentLinkedQueue<ByteBuffer>>();
+
+	private static final AtomicInteger[] counts = new AtomicInteger[MAX_SHIFT - MIN_SHIFT + 1];
+
+	static {
+
+		for (int i = 0; i < counts.length; i++) {
+			buckets.add(new ConcurrentLinkedQueue<ByteBuffer>());
+			counts[i] = new AtomicInteger();
+		}
+
+	}
+
+	/**
+	 * Returns a cleared buffer with the limit set to the requested size.
+	 *
+	 * @param size the required size in bytes
+	 * @return the buffer
+	 */
+	public static ByteBuffer acquire(int size) {
+
+		int bucket = getBucket(size);
+
+		ByteBuffer buffer = null;
+
+		if (bucket >= 0) {
+
+			buffer = buckets.get(bucket).poll();
+
+			if (buffer != null)
+				counts[bucket].decrementAndGet();
+			else
+				buffer = allocate(1 << (bucket + MIN_SHIFT));
+
+		} else buffer = allocate(size);
+
+		buffer.clear();
+		buffer.limit(size);
+
+		return buffer;
+
+	}
+
+	/**
+	 * Returns the buffer to the pool. The buffer must not be used after it is
+	 * released. Read-only buffers are never pooled, so wrapped arrays can be 
+	 * passed safely.
+	 *
+	 * @param buffer the buffer
+	 */
+	public static void release(ByteBuffer buffer) {
+
+		if (buffer == null || buffer.isReadOnly() || buffer.isDirect() != direct)
+			return;
+
+		int bucket = getBucket(buffer.capacity());
+
+		if (bucket < 0 || buffer.capacity() != 1 << (bucket + MIN_SHIFT))
+			return;
+
+		if (counts[bucket].incrementAndGet() > MAX_POOLED) {
+			counts[bucket].decrementAndGet();
+			return;
+		}
+
+		buckets.get(bucket).add(buffer);
+
+	}
+
+	private static int getBucket(int size) {
+
+		int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1)));
+
+		if (shift > MAX_SHIFT)
+			return -1;
+
+		return shift - MIN_SHIFT;
+
+	}
+
+	private static ByteBuffer allocate(int capacity) {
+
+		return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+
+	}
+
+}
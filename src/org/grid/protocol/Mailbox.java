@@ -0,0 +1,389 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.protocol;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded lock-free queue for many producers and a single consumer.
+ * Producers claim slots of a ring buffer, the consumer is parked while the
+ * queue is empty and unparked by the producer that adds the next element.
+ *
+ * Only one thread may take elements from the mailbox at a time. Any thread
+ * may remove or replace a queued element, the removed element leaves an empty
+ * slot in the buffer that is reclaimed when the consumer passes it.
+ *
+ * @param <E> the type of the elements
+ */
+public class Mailbox<E> implements Iterable<E> {
+
+	private static final Object REMOVED = new Object();
+
+	private static final int SPIN = 16;
+
+	private final AtomicReferenceArray<Object> slots;
+
+	private final int mask;
+
+	private final AtomicLong tail = new AtomicLong();
+
+	private final AtomicLong head = new AtomicLong();
+
+	private final AtomicInteger removed = new AtomicInteger();
+
+	private final AtomicReference<Thread> waiting = new AtomicReference<Thread>();
+
+	/**
+	 * Creates a new mailbox.
+	 *
+	 * @param capacity the capacity, rounded up to a power of two
+	 */
+	public Mailbox(int capacity) {
+
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+
+		slots = new AtomicReferenceArray<Object>(size);
+		mask = size - 1;
+
+	}
+
+	/**
+	 * Adds an element to the end of the queue.
+	 *
+	 * @param element the element
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(E element) {
+
+		if (element == null)
+			throw new NullPointerException();
+
+		while (true) {
+
+			long t = tail.get();
+
+			if (t - head.get() > mask)
+				return false;
+
+			if (tail.compareAndSet(t, t + 1)) {
+				slots.set((int) t & mask, element);
+				break;
+			}
+
+		}
+
+		// only the first producer wakes up the consumer
+		if (waiting.get() != null) {
+
+			Thread thread = waiting.getAndSet(null);
+
+			if (thread != null)
+				LockSupport.unpark(thread);
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Adds an element to the end of the queue, waits until there is space
+	 * if the buffer is full.
+	 *
+	 * @param element the element
+	 */
+	public void put(E element) {
+
+		for (int i = 0; !offer(element); i++) {
+			if (i < 1000)
+				Thread.yield();
+			else
+				LockSupport.parkNanos(this, 10000);
+		}
+
+	}
+
+	/**
+	 * Takes the first element of the queue. May only be called by the consumer.
+	 *
+	 * @return the element or <tt>null</tt> if the queue is empty
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+
+		while (true) {
+
+			long h = head.get();
+
+			if (h == tail.get())
+				return null;
+
+			int index = (int) h & mask;
+
+			Object element = take(index);
+
+			if (element == REMOVED) {
+				// the slot of a removed element is skipped
+				slots.set(index, null);
+				head.lazySet(h + 1);
+				removed.decrementAndGet();
+				continue;
+			}
+
+			// only the consumer moves the head, producers may see it late
+			head.lazySet(h + 1);
+			return (E) element;
+
+		}
+
+	}
+
+	/**
+	 * Clears a claimed slot and returns its content, which is either an
+	 * element or the removed marker. The marker is left in the slot.
+	 */
+	private Object take(int index) {
+
+		while (true) {
+
+			Object element = slots.get(index);
+
+			// the slot is claimed, but the element is not written yet
+			if (element == null) {
+				Thread.yield();
+				continue;
+			}
+
+			if (element == REMOVED)
+				return element;
+
+			// fails if the element was replaced or removed in the meantime
+			if (slots.compareAndSet(index, element, null))
+				return element;
+
+		}
+
+	}
+
+	/**
+	 * Takes the first element of the queue, waits until one is available.
+	 * May only be called by the consumer.
+	 *
+	 * @return the element
+	 * @throws InterruptedException
+	 */
+	public E take() throws InterruptedException {
+
+		for (int i = 0; true; i++) {
+
+			E element = poll();
+
+			if (element != null)
+				return element;
+
+			// producers are often about to add more, give them a chance first
+			if (i < SPIN) {
+				Thread.yield();
+				continue;
+			}
+
+			waiting.set(Thread.currentThread());
+
+			if (head.get() == tail.get())
+				LockSupport.park(this);
+
+			waiting.set(null);
+
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+		}
+
+	}
+
+	/**
+	 * Takes the first element of the queue, waits until one is available or
+	 * the timeout expires. May only be called by the consumer.
+	 *
+	 * @param timeout the timeout
+	 * @param unit the unit of the timeout
+	 * @return the element or <tt>null</tt> if the timeout expired
+	 * @throws InterruptedException
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while (true) {
+
+			E element = poll();
+
+			if (element != null)
+				return element;
+
+			long wait = deadline - System.nanoTime();
+
+			if (wait <= 0)
+				return null;
+
+			waiting.set(Thread.currentThread());
+
+			if (head.get() == tail.get())
+				LockSupport.parkNanos(this, wait);
+
+			waiting.set(null);
+
+			if (Thread.interrupted())
+				throw new InterruptedException();
+
+		}
+
+	}
+
+	/**
+	 * Removes the given element if it is still queued.
+	 *
+	 * @param element the element
+	 * @return true if the element was removed by this call
+	 */
+	public boolean remove(E element) {
+
+		for (long i = head.get(), t = tail.get(); i < t; i++) {
+
+			int index = (int) i & mask;
+
+			if (slots.get(index) == element && slots.compareAndSet(index, element, REMOVED)) {
+				removed.incrementAndGet();
+				return true;
+			}
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Replaces a queued element with another one that takes its place in the
+	 * queue.
+	 *
+	 * @param element the queued element
+	 * @param replacement the new element
+	 * @return true if the element was replaced, false if it was already taken
+	 */
+	public boolean replace(E element, E replacement) {
+
+		if (replacement == null)
+			throw new NullPointerException();
+
+		for (long i = head.get(), t = tail.get(); i < t; i++) {
+
+			int index = (int) i & mask;
+
+			if (slots.get(index) == element && slots.compareAndSet(index, element, replacement))
+				return true;
+		}
+
+		return false;
+
+	}
+
+	/**
+	 * Returns the number of queued elements.
+	 *
+	 * @return the number of elements
+	 */
+	public int size() {
+
+		return Math.max(0, (int) (tail.get() - head.get()) - removed.get());
+
+	}
+
+	public boolean isEmpty() {
+
+		return size() == 0;
+
+	}
+
+	public int capacity() {
+
+		return mask + 1;
+
+	}
+
+	/**
+	 * Returns an iterator over the queued elements. The iterator does not
+	 * throw exceptions if the queue is modified, elements that are taken
+	 * concurrently may or may not be returned.
+	 */
+	@Override
+	public Iterator<E> iterator() {
+
+		return new Iterator<E>() {
+
+			private long position = head.get();
+
+			private long end = tail.get();
+
+			private E next = advance();
+
+			@SuppressWarnings("unchecked")
+			private E advance() {
+
+				while (position < end) {
+
+					Object element = slots.get((int) position++ & mask);
+
+					if (element != null && element != REMOVED)
+						return (E) element;
+				}
+
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public E next() {
+
+				if (next == null)
+					throw new NoSuchElementException();
+
+				E element = next;
+				next = advance();
+				return element;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+		};
+
+	}
+
+}
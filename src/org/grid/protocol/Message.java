@@ -17,7 +17,10 @@
  */
 package org.grid.protocol;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 
 public abstract class Message implements Serializable {
 
@@ -29,16 +32,76 @@ public abstract class Message implements Serializable {
 		return getClass().getSimpleName();
 	}
 	
+	/**
+	 * Releases resources that are held by the message. Called once the 
+	 * message is written or dropped.
+	 */
+	public void release() {
+		
+	}
+	
+	private static byte[] toArray(ByteBuffer payload) {
+		
+		byte[] data = new byte[payload.remaining()];
+		payload.duplicate().get(data);
+		return data;
+		
+	}
+	
 	public static class RegisterMessage extends Message {
 
 		private static final long serialVersionUID = 1L;
 
+		/**
+		 * The client wants to receive {@link StateDeltaMessage} instead of
+		 * full state messages where possible.
+		 */
+		public static final int FEATURE_DELTA_STATE = 1;
+		
 		public RegisterMessage(String team, String passphrase) {
+			this(team, passphrase, 0);
+		}
+
+		public RegisterMessage(String team, String passphrase, int features) {
+			this(team, passphrase, features, null);
+		}
+
+		public RegisterMessage(String team, String passphrase, int features, String game) {
 			this.team = team;
 			this.passphrase = passphrase;
+			this.features = features;
+			this.game = game;
 		}
 
 		private String team, passphrase;
+		
+		private String game;
+		
+		/**
+		 * Returns the id of the game that the client wants to join, 
+		 * <tt>null</tt> selects the default game of the server.
+		 */
+		public String getGame() {
+			return game;
+		}
+
+		public void setGame(String game) {
+			this.game = game;
+		}
+		
+		private int features;
+		
+		public int getFeatures() {
+			return features;
+		}
+
+		public void setFeatures(int features) {
+			this.features = features;
+		}
+		
+		public boolean hasFeature(int feature) {
+			return (features & feature) != 0;
+		}
 
 		public String getTeam() {
 			return team;
@@ -135,6 +198,33 @@ public abstract class Message implements Serializable {
 		
 	}
 	
+	/**
+	 * Asks the server to send the state of the agent after every given 
+	 * number of steps without waiting for a scan request. The stamp of such
+	 * states is the number of the step. An interval of 0 cancels the 
+	 * subscription.
+	 */
+	public static class SubscribeMessage extends Message {
+
+		private static final long serialVersionUID = 1L;
+		
+		private int interval;
+		
+		public SubscribeMessage(int interval) {
+			super();
+			this.interval = interval;
+		}
+		
+		public int getInterval() {
+			return interval;
+		}
+
+		public void setInterval(int interval) {
+			this.interval = interval;
+		}
+		
+	}
+	
 	public static class StateMessage extends Message {
 
 		private int stamp;
@@ -184,6 +274,96 @@ public abstract class Message implements Serializable {
 
 	}
 	
+	/**
+	 * A state message that only contains the difference to the previous
+	 * neighborhood that was sent to the same client. The neighborhood is 
+	 * reconstructed by shifting the previous one by the movement of the agent 
+	 * and applying the changed cells.
+	 * 
+	 * @see Neighborhood#apply(Neighborhood, int, int, int[])
+	 */
+	public static class StateDeltaMessage extends Message {
+
+		private static final long serialVersionUID = 1L;
+		
+		private int stamp;
+		
+		private Direction direction;
+		
+		private boolean hasFlag;
+		
+		private int shiftX, shiftY;
+		
+		private int[] changes;
+		
+		private transient Neighborhood neighborhood;
+		
+		public StateDeltaMessage(Direction direction, boolean hasFlag, int shiftX, int shiftY, int[] changes) {
+			super();
+			this.direction = direction;
+			this.hasFlag = hasFlag;
+			this.shiftX = shiftX;
+			this.shiftY = shiftY;
+			this.changes = changes;
+		}
+
+		public int getStamp() {
+			return stamp;
+		}
+
+		public void setStamp(int stamp) {
+			this.stamp = stamp;
+		}
+
+		public Direction getDirection() {
+			return direction;
+		}
+
+		public boolean hasFlag() {
+			return hasFlag;
+		}
+
+		public int getShiftX() {
+			return shiftX;
+		}
+
+		public int getShiftY() {
+			return shiftY;
+		}
+
+		public int[] getChanges() {
+			return changes;
+		}
+		
+		/**
+		 * Sets the full neighborhood that this difference describes. It is 
+		 * only known on the sending side and is not transferred.
+		 * 
+		 * @param neighborhood the full neighborhood
+		 */
+		public void setNeighborhood(Neighborhood neighborhood) {
+			this.neighborhood = neighborhood;
+		}
+		
+		/**
+		 * Converts the message to a full state message that does not depend on
+		 * the previous state.
+		 * 
+		 * @return the full state message or <tt>null</tt> if the full 
+		 * neighborhood is not known
+		 */
+		public StateMessage toStateMessage() {
+			
+			if (neighborhood == null)
+				return null;
+			
+			StateMessage state = new StateMessage(direction, neighborhood, hasFlag);
+			state.setStamp(stamp);
+			return state;
+		}
+		
+	}
+	
 	public static class MoveMessage extends Message {
 
 		private Direction direction;
@@ -212,6 +392,8 @@ public abstract class Message implements Serializable {
 		private int to;
 		
 		private byte[] message;
+		
+		private transient ByteBuffer payload;
 
 		public SendMessage(int to, byte[] message) {
 			super();
@@ -219,6 +401,17 @@ public abstract class Message implements Serializable {
 			this.message = message;
 		}
 
+		/**
+		 * Creates a message with a pooled payload.
+		 * 
+		 * @see BufferPool
+		 */
+		public SendMessage(int to, ByteBuffer payload) {
+			super();
+			this.to = to;
+			this.payload = payload;
+		}
+		
 		public int getTo() {
 			return to;
 		}
@@ -228,11 +421,45 @@ public abstract class Message implements Serializable {
 		}
 
 		public byte[] getMessage() {
+			if (message == null && payload != null)
+				message = toArray(payload);
 			return message;
 		}
 
 		public void setMessage(byte[] message) {
 			this.message = message;
+			this.payload = null;
+		}
+		
+		/**
+		 * Returns the content of the message as a buffer without copying it.
+		 * 
+		 * @return the buffer or <tt>null</tt> if there is no content 
+		 */
+		public ByteBuffer getPayload() {
+			if (payload == null && message != null)
+				return ByteBuffer.wrap(message).asReadOnlyBuffer();
+			return payload;
+		}
+
+		/**
+		 * Returns the length of the message or -1 if there is no content.
+		 */
+		public int getLength() {
+			if (payload != null)
+				return payload.remaining();
+			return message == null ? -1 : message.length;
+		}
+		
+		@Override
+		public void release() {
+			BufferPool.release(payload);
+			payload = null;
+		}
+		
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			getMessage();
+			out.defaultWriteObject();
 		}
 		
 	}
@@ -244,12 +471,26 @@ public abstract class Message implements Serializable {
 		private int from;
 		
 		private byte[] message;
+		
+		private transient ByteBuffer payload;
 
 		public ReceiveMessage(int from, byte[] message) {
 			super();
 			this.from = from;
 			this.message = message;
 		}
+		
+		/**
+		 * Creates a message with a pooled payload that is released after 
+		 * the message is written.
+		 * 
+		 * @see BufferPool
+		 */
+		public ReceiveMessage(int from, ByteBuffer payload) {
+			super();
+			this.from = from;
+			this.payload = payload;
+		}
 
 		public int getFrom() {
 			return from;
@@ -260,13 +501,46 @@ public abstract class Message implements Serializable {
 		}
 
 		public byte[] getMessage() {
+			if (message == null && payload != null)
+				message = toArray(payload);
 			return message;
 		}
 
 		public void setMessage(byte[] message) {
 			this.message = message;
+			this.payload = null;
+		}
+		
+		/**
+		 * Returns the content of the message as a buffer without copying it.
+		 * 
+		 * @return the buffer or <tt>null</tt> if there is no content 
+		 */
+		public ByteBuffer getPayload() {
+			if (payload == null && message != null)
+				return ByteBuffer.wrap(message).asReadOnlyBuffer();
+			return payload;
+		}
+
+		/**
+		 * Returns the length of the message or -1 if there is no content.
+		 */
+		public int getLength() {
+			if (payload != null)
+				return payload.remaining();
+			return message == null ? -1 : message.length;
 		}
 		
+		@Override
+		public void release() {
+			BufferPool.release(payload);
+			payload = null;
+		}
+		
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			getMessage();
+			out.defaultWriteObject();
+		}
 		
 	}
 }
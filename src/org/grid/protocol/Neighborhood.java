@@ -18,7 +18,14 @@
 package org.grid.protocol;
 
 import java.awt.Color;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.grid.arena.Arena;
 
@@ -41,15 +48,58 @@ public class Neighborhood implements Serializable, Arena {
 	
 	private static final long serialVersionUID = 1L;
 
+	/**
+	 * The serialized form still contains the full integer grid so that 
+	 * serialized neighborhoods can be exchanged with older clients.
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("size", Integer.TYPE),
+		new ObjectStreamField("grid", int[].class)
+	};
+	
+	/**
+	 * Marks a cell whose value is stored in the side table (a teammate id).
+	 */
+	private static final byte ID = 1;
+	
 	private int size;
 	
-	private int[] grid;
+	/**
+	 * Cell codes, one byte per cell. Cells that contain a teammate id are
+	 * marked with {@link #ID} and the ids are kept in a sparse side table,
+	 * sorted by the index of the cell.
+	 */
+	private transient byte[] cells;
+	
+	private transient int[] idCells;
+	
+	private transient int[] ids;
+	
+	private transient int idCount;
 	
 	public Neighborhood(int size) {
 	
 		this.size = size;
 		
-		this.grid = new int[(size * 2 + 1) * (size * 2 + 1)];
+		this.cells = new byte[(size * 2 + 1) * (size * 2 + 1)];
+		
+		this.idCells = new int[4];
+		
+		this.ids = new int[4];
+		
+	}
+
+	public Neighborhood(Neighborhood n) {
+		
+		this.size = n.size;
+		
+		this.cells = n.cells.clone();
+		
+		this.idCells = n.idCells.clone();
+		
+		this.ids = n.ids.clone();
+		
+		this.idCount = n.idCount;
 		
 	}
 
@@ -65,8 +115,7 @@ public class Neighborhood implements Serializable, Arena {
 		x += size;
 		y += size;
 		
-
-		return grid[x + y * (2 * size + 1)]; 
+		return get(x + y * (2 * size + 1)); 
 		
 	}
 	
@@ -78,10 +127,335 @@ public class Neighborhood implements Serializable, Arena {
 		x += size;
 		y += size;
 		
-		grid[x + y * (2 * size + 1)] = c;
+		set(x + y * (2 * size + 1), c);
+		
+	}
+	
+	/**
+	 * Copies a row of cell codes to the neighborhood. The codes must be
+	 * one of the constants of this class, ids of teammates have to be set
+	 * with {@link #setCell(int, int, int)}. Cells outside of the
+	 * neighborhood are skipped.
+	 *
+	 * @param x the horizontal position of the first cell
+	 * @param y the vertical position of the row
+	 * @param codes the array of codes
+	 * @param offset the position of the first code in the array
+	 * @param length the number of cells
+	 */
+	public void setCells(int x, int y, byte[] codes, int offset, int length) {
+		
+		if (y > size || y < -size)
+			return;
+		
+		if (x < -size) {
+			offset += -size - x;
+			length -= -size - x;
+			x = -size;
+		}
+		
+		length = Math.min(length, size - x + 1);
+		
+		if (length <= 0)
+			return;
+		
+		int index = (x + size) + (y + size) * (2 * size + 1);
+		
+		clearIds(index, index + length);
+		
+		System.arraycopy(codes, offset, cells, index, length);
+		
+	}
+	
+	/**
+	 * Sets a row of cells to the same code.
+	 *
+	 * @param x the horizontal position of the first cell
+	 * @param y the vertical position of the row
+	 * @param length the number of cells
+	 * @param c the code, one of the constants of this class
+	 */
+	public void fillCells(int x, int y, int length, int c) {
+		
+		if (!isCode(c))
+			throw new IllegalArgumentException("Not a cell code: " + c);
+		
+		if (y > size || y < -size)
+			return;
+		
+		if (x < -size) {
+			length -= -size - x;
+			x = -size;
+		}
+		
+		length = Math.min(length, size - x + 1);
+		
+		if (length <= 0)
+			return;
+		
+		int index = (x + size) + (y + size) * (2 * size + 1);
+		
+		clearIds(index, index + length);
+		
+		Arrays.fill(cells, index, index + length, (byte) c);
+		
+	}
+	
+	/**
+	 * Removes the ids of the cells with indices from <tt>from</tt>
+	 * (inclusive) to <tt>to</tt> (exclusive) from the side table.
+	 */
+	private void clearIds(int from, int to) {
+		
+		if (idCount == 0)
+			return;
+		
+		int first = Arrays.binarySearch(idCells, 0, idCount, from);
+		int last = Arrays.binarySearch(idCells, 0, idCount, to);
+		
+		if (first < 0)
+			first = -(first + 1);
+		
+		if (last < 0)
+			last = -(last + 1);
+		
+		System.arraycopy(idCells, last, idCells, first, idCount - last);
+		System.arraycopy(ids, last, ids, first, idCount - last);
+		
+		idCount -= last - first;
+		
+	}
+	
+	private static boolean isCode(int c) {
+		return c <= EMPTY && c >= OTHER;
+	}
+	
+	private int get(int index) {
+		
+		byte c = cells[index];
+		
+		if (c != ID)
+			return c;
+		
+		return ids[Arrays.binarySearch(idCells, 0, idCount, index)];
+		
+	}
+	
+	private void set(int index, int c) {
+		
+		int position = cells[index] == ID ? Arrays.binarySearch(idCells, 0, idCount, index) : -1;
+		
+		if (isCode(c)) {
+			
+			cells[index] = (byte) c;
+			
+			if (position >= 0) {
+				System.arraycopy(idCells, position + 1, idCells, position, idCount - position - 1);
+				System.arraycopy(ids, position + 1, ids, position, idCount - position - 1);
+				idCount--;
+			}
+			
+			return;
+		}
+		
+		cells[index] = ID;
+		
+		if (position < 0) {
+			
+			position = -(Arrays.binarySearch(idCells, 0, idCount, index) + 1);
+			
+			if (idCount == idCells.length) {
+				idCells = Arrays.copyOf(idCells, idCount * 2);
+				ids = Arrays.copyOf(ids, idCount * 2);
+			}
+			
+			System.arraycopy(idCells, position, idCells, position + 1, idCount - position);
+			System.arraycopy(ids, position, ids, position + 1, idCount - position);
+			
+			idCells[position] = index;
+			idCount++;
+		}
+		
+		ids[position] = c;
+		
+	}
+	
+	/**
+	 * Computes the cells that differ between this neighborhood and the given
+	 * previous neighborhood after the previous one is shifted by the 
+	 * movement of the agent.
+	 * 
+	 * @param previous the previous neighborhood
+	 * @param shiftX the horizontal movement of the agent since the previous neighborhood
+	 * @param shiftY the vertical movement of the agent since the previous neighborhood
+	 * @return an array of (cell index, value) pairs or <tt>null</tt> if the 
+	 * neighborhoods cannot be compared
+	 */
+	public int[] difference(Neighborhood previous, int shiftX, int shiftY) {
+		
+		if (previous == null || previous.size != size)
+			return null;
+		
+		int width = 2 * size + 1;
+		
+		int count = 0;
+		
+		int[] changes = new int[16];
 		
+		for (int j = 0; j < width; j++) {
+			for (int i = 0; i < width; i++) {
+				
+				int x = i + shiftX;
+				int y = j + shiftY;
+				
+				int index = i + j * width;
+				
+				if (x >= 0 && x < width && y >= 0 && y < width) {
+					
+					byte c = cells[index];
+					byte p = previous.cells[x + y * width];
+					
+					if (c == p && (c != ID || get(index) == previous.get(x + y * width)))
+						continue;
+				}
+				
+				if (count + 2 > changes.length)
+					changes = Arrays.copyOf(changes, changes.length * 2);
+				
+				changes[count++] = index;
+				changes[count++] = get(index);
+				
+			}
+		}
+		
+		return Arrays.copyOf(changes, count);
+	}
+
+	/**
+	 * Reconstructs a neighborhood from the previous neighborhood and the
+	 * difference computed with {@link #difference(Neighborhood, int, int)}.
+	 * 
+	 * @param previous the previous neighborhood
+	 * @param shiftX the horizontal movement of the agent since the previous neighborhood
+	 * @param shiftY the vertical movement of the agent since the previous neighborhood
+	 * @param changes an array of (cell index, value) pairs
+	 * @return the new neighborhood
+	 */
+	public static Neighborhood apply(Neighborhood previous, int shiftX, int shiftY, int[] changes) {
+		
+		Neighborhood n = new Neighborhood(previous.size);
+		
+		int width = 2 * n.size + 1;
+		
+		for (int j = Math.max(0, -shiftY); j < Math.min(width, width - shiftY); j++) {
+			for (int i = Math.max(0, -shiftX); i < Math.min(width, width - shiftX); i++) {
+				
+				int index = (i + shiftX) + (j + shiftY) * width;
+				
+				if (previous.cells[index] == ID)
+					n.set(i + j * width, previous.get(index));
+				else
+					n.cells[i + j * width] = previous.cells[index];
+			}
+		}
+		
+		for (int k = 0; k + 1 < changes.length; k += 2) {
+			if (changes[k] >= 0 && changes[k] < n.cells.length)
+				n.set(changes[k], changes[k + 1]);
+		}
+		
+		return n;
 	}
 
+	int getEncodedSize() {
+		
+		return 8 + cells.length + idCount * 4;
+		
+	}
+	
+	void encode(ByteBuffer buffer) {
+		
+		buffer.putInt(size);
+		
+		buffer.put(cells);
+		
+		buffer.putInt(idCount);
+		
+		for (int i = 0; i < idCount; i++)
+			buffer.putInt(ids[i]);
+		
+	}
+	
+	static Neighborhood decode(ByteBuffer buffer) {
+		
+		int size = buffer.getInt();
+		
+		if (size < 0 || (long) (size * 2 + 1) * (size * 2 + 1) > buffer.remaining())
+			throw new IllegalArgumentException("Illegal neighborhood size: " + size);
+		
+		Neighborhood n = new Neighborhood(size);
+		
+		buffer.get(n.cells);
+		
+		int count = buffer.getInt();
+		
+		if (count < 0 || count > n.cells.length)
+			throw new IllegalArgumentException("Illegal number of ids: " + count);
+		
+		n.idCells = new int[Math.max(4, count)];
+		n.ids = new int[Math.max(4, count)];
+		
+		for (int i = 0; i < n.cells.length; i++) {
+			
+			if (n.cells[i] == ID) {
+				
+				if (n.idCount == count)
+					throw new IllegalArgumentException("Missing ids");
+				
+				n.idCells[n.idCount] = i;
+				n.ids[n.idCount++] = buffer.getInt();
+				
+			} else if (!isCode(n.cells[i]))
+				throw new IllegalArgumentException("Illegal cell code: " + n.cells[i]);
+		}
+		
+		return n;
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		
+		int[] grid = new int[cells.length];
+		
+		for (int i = 0; i < grid.length; i++)
+			grid[i] = get(i);
+		
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("size", size);
+		fields.put("grid", grid);
+		out.writeFields();
+		
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		
+		ObjectInputStream.GetField fields = in.readFields();
+		
+		size = fields.get("size", 0);
+		
+		int[] grid = (int[]) fields.get("grid", null);
+		
+		cells = new byte[(size * 2 + 1) * (size * 2 + 1)];
+		idCells = new int[4];
+		ids = new int[4];
+		
+		if (grid == null || grid.length != cells.length)
+			throw new InvalidObjectException("Illegal neighborhood grid");
+		
+		for (int i = 0; i < grid.length; i++)
+			set(i, grid[i]);
+		
+	}
+	
 	@Override
 	public int getBaseTile(int x, int y) {
 		return 0;
@@ -17,16 +17,53 @@
  */
 package org.grid.protocol;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.grid.protocol.Message.StateDeltaMessage;
+import org.grid.protocol.Message.StateMessage;
 
 public class ProtocolSocket {
 
+	/**
+	 * Encoding of messages on the wire. Binary encoding is used by default, 
+	 * set the system property <tt>fri.pipt.protocol.encoding</tt> to
+	 * <tt>serialized</tt> to use Java serialization instead.
+	 */
+	public static enum Encoding {SERIALIZED, BINARY}
+	
+	/**
+	 * What happens when a message is sent while the outgoing queue is full. 
+	 * State messages are never dropped one by one because every difference
+	 * depends on the previous state, older states are coalesced instead so 
+	 * that only the newest state is kept.
+	 * 
+	 * <ul>
+	 * <li><tt>COALESCE</tt> - stale states are coalesced, if that does not 
+	 * free any space the new message is dropped</li>
+	 * <li><tt>DROP_OLDEST</tt> - the oldest messages are dropped</li>
+	 * <li><tt>DISCONNECT</tt> - the socket is closed</li>
+	 * </ul>
+	 */
+	public static enum OverflowPolicy {COALESCE, DROP_OLDEST, DISCONNECT}
+	
 	public static class AppendableObjectOutputStream extends ObjectOutputStream {
 
 		  public AppendableObjectOutputStream(OutputStream out) throws IOException {
@@ -42,11 +79,24 @@ public class ProtocolSocket {
 
 		}
 
+	private static final Encoding DEFAULT_ENCODING = "serialized".equalsIgnoreCase(System
+			.getProperty("fri.pipt.protocol.encoding")) ? Encoding.SERIALIZED : Encoding.BINARY;
+	
+	/**
+	 * Capacity of the incoming and outgoing queues. A socket whose outgoing
+	 * queue fills up is closed unless an outgoing limit is set, the input 
+	 * waits until the incoming queue has space.
+	 */
+	private static final int QUEUE_CAPACITY = Math.max(64, Integer.getInteger("fri.pipt.protocol.capacity", 4096));
 	
 	private ObjectInputStream in;
 	
 	private ObjectOutputStream out;
 	
+	private BinaryCodec.Reader reader;
+	
+	private BinaryCodec.Writer writer;
+	
 	private Thread inputThread;
 	
 	private Thread outputThread;
@@ -55,24 +105,92 @@ public class ProtocolSocket {
 	
 	private boolean debug = Boolean.getBoolean("fri.pipt.protocol.debug");
 	
-	private ConcurrentLinkedQueue<Message> inQueue = new ConcurrentLinkedQueue<Message>();
+	/**
+	 * Maximum number of messages that are written before the output is flushed.
+	 */
+	private int batchSize = Math.max(1, Integer.getInteger("fri.pipt.protocol.batch", 64));
+	
+	/**
+	 * Time in milliseconds that the output thread waits for more messages 
+	 * before it flushes an incomplete batch.
+	 */
+	private int linger = Math.max(0, Integer.getInteger("fri.pipt.protocol.linger", 0));
 	
-	private ConcurrentLinkedQueue<Message> outQueue = new ConcurrentLinkedQueue<Message>();
+	private Mailbox<Message> inQueue = new Mailbox<Message>(QUEUE_CAPACITY);
+	
+	private Mailbox<Message> outQueue = new Mailbox<Message>(QUEUE_CAPACITY);
+	
+	private int outgoingLimit = 0;
+	
+	private OverflowPolicy overflowPolicy = OverflowPolicy.COALESCE;
+	
+	private Object overflowLock = new Object();
+	
+	private AtomicInteger dropped = new AtomicInteger();
 	
 	private Socket socket;
 	
+	private volatile Encoding encoding;
+	
+	private CountDownLatch negotiated = new CountDownLatch(1);
+	
+	private boolean detect;
+	
+	private SocketChannel channel;
+	
+	private SelectorLoop loop;
+	
+	private ByteBuffer readBuffer;
+	
+	private ByteBuffer writeBuffer;
+	
+	private Message pendingMessage;
+	
+	private AtomicBoolean writeScheduled;
+	
 	public ProtocolSocket(Socket sck) throws IOException {
+		this(sck, DEFAULT_ENCODING);
+	}
+	
+	/**
+	 * Creates a new protocol socket. The socket does not read or write
+	 * anything before {@link #start()} is called.
+	 * 
+	 * @param sck the connected socket
+	 * @param encoding the encoding to use or <tt>null</tt> to detect the encoding
+	 * from the first bytes that are received from the other side
+	 * @throws IOException
+	 */
+	public ProtocolSocket(Socket sck, Encoding encoding) throws IOException {
 
 		this.socket = sck;
+		
+		this.encoding = encoding;
+		
+		this.detect = encoding == null;
+		
+		if (!detect)
+			negotiated.countDown();
 
-		inputThread = new Thread(new Runnable() {
+		inputThread = ProtocolThreads.newThread(new Runnable() {
 
 			@Override
 			public void run() {
 				
 				try {
-					in = new ObjectInputStream(socket.getInputStream());
+					InputStream stream = new BufferedInputStream(socket.getInputStream());
+					
+					if (ProtocolSocket.this.encoding == null) {
+						ProtocolSocket.this.encoding = detectEncoding(stream);
+						negotiated.countDown();
+					}
+					
+					if (ProtocolSocket.this.encoding == Encoding.BINARY)
+						reader = new BinaryCodec.Reader(stream);
+					else 
+						in = new ObjectInputStream(stream);
 				} catch (IOException e1) {
+					close();
 					return;
 				}
 				
@@ -80,7 +198,7 @@ public class ProtocolSocket {
 
 					try {
 
-						Object obj = in.readObject();
+						Object obj = reader != null ? reader.read() : in.readObject();
 
 						if (obj == null || !(obj instanceof Message))
 							continue;
@@ -105,16 +223,31 @@ public class ProtocolSocket {
 			}
 			
 		});
-		inputThread.start();
 		
-		outputThread = new Thread(new Runnable() {
+		outputThread = ProtocolThreads.newThread(new Runnable() {
 
 			@Override
 			public void run() {
 				
+				try {
+					negotiated.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				
+				if (ProtocolSocket.this.encoding == null)
+					return;
 
 				try {
-					out = new ObjectOutputStream(socket.getOutputStream());
+					if (ProtocolSocket.this.encoding == Encoding.BINARY) {
+						writer = new BinaryCodec.Writer(socket.getOutputStream());
+						// the other side detects the encoding by looking at the preface 
+						if (!detect) {
+							writer.writePreface();
+							writer.flush();
+						}
+					} else
+						out = new ObjectOutputStream(new BufferedOutputStream(socket.getOutputStream()));
 				} catch (IOException e1) {
 					return;
 				}
@@ -123,22 +256,50 @@ public class ProtocolSocket {
 				while (running) {
 
 					try {
-						synchronized (outQueue) {
-							while (outQueue.isEmpty()) {
-								try {
-									outQueue.wait();
-								} catch (InterruptedException e) {}
-							}
+						Message message;
+						
+						try {
+							message = outQueue.take();
+						} catch (InterruptedException e) {
+							continue;
 						}
-
-						Message message = outQueue.poll();
 						
-						if (debug)
-							System.err.println("*** PROTOCOL OUTGOING >>> " + message.getClass().getSimpleName() + " >>>");
+						// drain everything that is queued and flush it at once
+						long deadline = System.currentTimeMillis() + linger;
 						
-						out.writeObject(message);
-
-						out.flush();
+						int count = 0;
+						
+						while (message != null) {
+						
+							if (debug)
+								System.err.println("*** PROTOCOL OUTGOING >>> " + message.getClass().getSimpleName() + " >>>");
+							
+							if (writer != null)
+								writer.write(message);
+							else
+								out.writeObject(message);
+							
+							message.release();
+							
+							if (++count >= batchSize)
+								break;
+							
+							message = outQueue.poll();
+							
+							if (message == null && linger > 0) {
+								long wait = deadline - System.currentTimeMillis();
+								if (wait > 0) {
+									try {
+										message = outQueue.poll(wait, TimeUnit.MILLISECONDS);
+									} catch (InterruptedException e) {}
+								}
+							}
+						}
+						
+						if (writer != null)
+							writer.flush();
+						else
+							out.flush();
 						
 					} catch (IOException e) {
 						if (debug)
@@ -150,34 +311,192 @@ public class ProtocolSocket {
 			}
 			
 		});
+	}
+	
+	/**
+	 * Creates a new protocol socket that is served by a selector loop instead
+	 * of its own threads. Only the binary encoding is supported in this mode,
+	 * messages are handled on the loop thread. The socket is added to the loop
+	 * when {@link #start()} is called.
+	 * 
+	 * @param channel the connected channel
+	 * @param loop the loop that serves this socket
+	 * @throws IOException
+	 */
+	public ProtocolSocket(SocketChannel channel, SelectorLoop loop) throws IOException {
+		
+		this.channel = channel;
+		this.socket = channel.socket();
+		this.loop = loop;
+		this.detect = true;
+		
+		readBuffer = ByteBuffer.allocate(4096);
+		writeBuffer = ByteBuffer.allocate(4096);
+		writeScheduled = new AtomicBoolean(false);
+		
+		channel.configureBlocking(false);
+		
+	}
+	
+	/**
+	 * Starts reading and writing messages. Subclasses are fully constructed at
+	 * this point, so incoming messages can be handled safely.
+	 */
+	public void start() {
+		
+		if (loop != null) {
+			loop.register(this);
+			return;
+		}
+		
+		inputThread.start();
 		outputThread.start();
+		
 	}
 	
-	public Message receiveMessage() {
+	SocketChannel getChannel() {
+		return channel;
+	}
+	
+	/**
+	 * Reads available data from the channel and handles all complete frames. 
+	 * Called by the selector loop.
+	 */
+	void channelRead() throws IOException {
 		
-		synchronized (inQueue) {
+		if (channel.read(readBuffer) < 0)
+			throw new EOFException();
 		
-			if (inQueue.isEmpty())
-				return null;
+		readBuffer.flip();
 		
-			return inQueue.poll();
+		if (encoding == null) {
+			
+			if (readBuffer.remaining() < 5) {
+				readBuffer.compact();
+				return;
+			}
+			
+			if (readBuffer.getInt() != BinaryCodec.MAGIC || readBuffer.get() != BinaryCodec.VERSION)
+				throw new ProtocolException("Only binary encoding is supported");
+			
+			encoding = Encoding.BINARY;
+			negotiated.countDown();
+			
+		}
+		
+		while (running && readBuffer.remaining() >= 4) {
+			
+			int length = readBuffer.getInt(readBuffer.position());
+			
+			if (length < 1 || length > BinaryCodec.MAX_FRAME_SIZE)
+				throw new ProtocolException("Illegal frame length: " + length);
+			
+			if (readBuffer.remaining() < length + 4) {
+				
+				if (readBuffer.capacity() < length + 4) {
+					ByteBuffer buffer = ByteBuffer.allocate(length + 4);
+					buffer.put(readBuffer);
+					readBuffer = buffer;
+					return;
+				}
+				
+				break;
+			}
+			
+			int limit = readBuffer.limit();
+			
+			readBuffer.position(readBuffer.position() + 4);
+			readBuffer.limit(readBuffer.position() + length);
+			
+			Message message = BinaryCodec.decode(readBuffer);
+			
+			readBuffer.limit(limit);
+			
+			if (debug)
+				System.err.println("*** PROTOCOL INCOMING <<< " + message.getClass().getSimpleName() + " <<<");
+			
+			handleMessage(message);
 			
 		}
 		
+		readBuffer.compact();
+		
 	}
 	
-	public Message waitMessage() {
+	/**
+	 * Writes pending messages to the channel. Called by the selector loop.
+	 * 
+	 * @return true if there is still data left to write
+	 */
+	boolean channelWrite() throws IOException {
+		
+		while (true) {
 		
-		synchronized (inQueue) {
-			while (true) {
+			Message message;
 			
-				if (inQueue.isEmpty())
-					try {
-						inQueue.wait();
-					} catch (InterruptedException e) {}
-				else break;
+			// a message that did not fit into the buffer is kept aside, peeking
+			// is not safe because queued messages can be dropped at any time
+			while ((message = pendingMessage != null ? pendingMessage : outQueue.poll()) != null) {
+				
+				pendingMessage = null;
+				
+				int size = BinaryCodec.getFrameSize(message);
+				
+				if (writeBuffer.remaining() < size) {
+					
+					if (writeBuffer.position() > 0) {
+						pendingMessage = message;
+						break;
+					}
+
+					writeBuffer = ByteBuffer.allocate(Math.max(size, writeBuffer.capacity() * 2));
+				}
+				
+				if (debug)
+					System.err.println("*** PROTOCOL OUTGOING >>> " + message.getClass().getSimpleName() + " >>>");
+				
+				BinaryCodec.encode(message, writeBuffer);
+				
+				message.release();
+				
 			}
-			return inQueue.poll();
+			
+			writeBuffer.flip();
+			
+			channel.write(writeBuffer);
+			
+			boolean pending = writeBuffer.hasRemaining();
+			
+			writeBuffer.compact();
+			
+			if (pending)
+				return true;
+			
+			if (pendingMessage != null || !outQueue.isEmpty())
+				continue;
+			
+			writeScheduled.set(false);
+			
+			// a message may have been queued before the flag was cleared
+			if (outQueue.isEmpty() || !writeScheduled.compareAndSet(false, true))
+				return false;
+			
+		}
+		
+	}
+	
+	public Message receiveMessage() {
+		
+		return inQueue.poll();
+		
+	}
+	
+	public Message waitMessage() {
+		
+		while (true) {
+			try {
+				return inQueue.take();
+			} catch (InterruptedException e) {}
 		}
 		
 	}
@@ -186,23 +505,206 @@ public class ProtocolSocket {
 		
 		if (msg == null)
 			return;
+		
+		if (outgoingLimit > 0 && outQueue.size() >= outgoingLimit) {
 			
-		synchronized (outQueue) {
+			msg = overflow(msg);
+			
+			if (msg == null)
+				return;
+		}
+		
+		if (!outQueue.offer(msg)) {
+			
+			// the space of dropped messages is reclaimed once the output passes them
+			if (outgoingLimit > 0 && overflowPolicy != OverflowPolicy.DISCONNECT) {
+				
+				synchronized (overflowLock) {
+					msg = coalesce(msg);
+				}
+				
+				if (msg != null)
+					drop(msg);
+				
+				return;
+			}
+			
+			// the other side has not read anything for a long time
+			if (debug)
+				System.err.println("*** PROTOCOL OUTGOING QUEUE FULL, closing socket ***");
+			
+			drop(msg);
+			close();
+			return;
+		}
+		
+		if (loop != null && writeScheduled.compareAndSet(false, true))
+			loop.requestWrite(this);
+		
+	}
+	
+	/**
+	 * Limits the number of messages that wait in the outgoing queue. The limit
+	 * is not exact, messages that are sent concurrently can exceed it slightly.
+	 * It is at most half of the queue capacity, so that the space of dropped 
+	 * messages is not needed before they are passed by the output.
+	 * 
+	 * @param limit the maximum number of queued messages or 0 for no limit
+	 * @param policy what to do when the queue is full
+	 */
+	public void setOutgoingLimit(int limit, OverflowPolicy policy) {
+		
+		this.outgoingLimit = Math.min(outQueue.capacity() / 2, Math.max(0, limit));
+		this.overflowPolicy = policy == null ? OverflowPolicy.COALESCE : policy;
 		
-			outQueue.add(msg);
+	}
+	
+	/**
+	 * Returns the number of messages that wait to be sent.
+	 * 
+	 * @return the number of queued messages
+	 */
+	public int getOutgoingDepth() {
+		return outQueue.size();
+	}
+	
+	/**
+	 * Returns the number of outgoing messages that were dropped because the 
+	 * queue was full.
+	 * 
+	 * @return the number of dropped messages
+	 */
+	public int getDroppedMessages() {
+		return dropped.get();
+	}
+	
+	private Message overflow(Message message) {
 		
-			outQueue.notifyAll();
+		synchronized (overflowLock) {
+			
+			if (outQueue.size() < outgoingLimit)
+				return message;
+			
+			if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+				
+				if (debug)
+					System.err.println("*** PROTOCOL OVERFLOW, closing socket ***");
+				
+				drop(message);
+				close();
+				return null;
+			}
 			
+			if (overflowPolicy == OverflowPolicy.DROP_OLDEST) {
+				
+				for (Message m : outQueue) {
+					
+					if (outQueue.size() < outgoingLimit)
+						return message;
+					
+					if (!isState(m) && outQueue.remove(m))
+						drop(m);
+				}
+			}
+			
+			message = coalesce(message);
+			
+			if (message == null || outQueue.size() < outgoingLimit || isState(message))
+				return message;
+			
+			drop(message);
+			return null;
 		}
 		
 	}
 	
+	/**
+	 * Removes all queued states except the newest one. The new state takes
+	 * the place of the newest queued state. A difference that remains after 
+	 * its base was removed is replaced with a full state.
+	 * 
+	 * @param message the message that is about to be queued
+	 * @return the message that still has to be queued or <tt>null</tt>
+	 */
+	private Message coalesce(Message message) {
+		
+		ArrayList<Message> states = new ArrayList<Message>();
+		
+		for (Message m : outQueue)
+			if (isState(m))
+				states.add(m);
+		
+		if (states.isEmpty())
+			return message;
+		
+		Message newest = states.remove(states.size() - 1);
+		
+		// the newest state has to be replaced before its base is removed, 
+		// otherwise the output could send it in the meantime
+		if (isState(message)) {
+			
+			if (!outQueue.replace(newest, toStateMessage(message)))
+				return message;
+			
+			drop(newest);
+			message = null;
+			
+		} else if (states.isEmpty() || (newest instanceof StateDeltaMessage 
+				&& !outQueue.replace(newest, toStateMessage(newest))))
+			return message;
+		
+		// states are removed from the newest to the oldest so that the states 
+		// that are sent in the meantime still form an unbroken sequence
+		for (int i = states.size() - 1; i >= 0; i--) {
+			if (outQueue.remove(states.get(i)))
+				drop(states.get(i));
+		}
+		
+		return message;
+		
+	}
+	
+	private void drop(Message message) {
+		
+		dropped.incrementAndGet();
+		
+		message.release();
+		
+	}
+	
+	private static boolean isState(Message message) {
+		return message instanceof StateMessage || message instanceof StateDeltaMessage;
+	}
+	
+	private static Message toStateMessage(Message message) {
+		
+		if (!(message instanceof StateDeltaMessage))
+			return message;
+		
+		StateMessage state = ((StateDeltaMessage) message).toStateMessage();
+		
+		return state == null ? message : state;
+		
+	}
+	
 	public void close() {
 		
-		outQueue.clear();
+		for (Message m : outQueue)
+			if (outQueue.remove(m))
+				m.release();
+		
+		if (pendingMessage != null) {
+			pendingMessage.release();
+			pendingMessage = null;
+		}
 		
 		running = false;
 		
+		negotiated.countDown();
+		
+		if (outputThread != null)
+			outputThread.interrupt();
+		
 		onTerminate();
 		
 		try {
@@ -216,21 +718,60 @@ public class ProtocolSocket {
 		} catch (IOException e) {
 		} catch (NullPointerException e) {
 		}
+		
+		try {
+			reader.close();
+		} catch (IOException e) {
+		} catch (NullPointerException e) {
+		}
+		
+		try {
+			writer.close();
+		} catch (IOException e) {
+		} catch (NullPointerException e) {
+		}
+		
+		try {
+			socket.close();
+		} catch (IOException e) {
+		}
 	}
 	
 	protected void handleMessage(Message message) {
 		
-		synchronized (inQueue) {
+		inQueue.put(message);
+		
+	}
+	
+	protected void onTerminate() {
+		
+	}
+	
+	private static Encoding detectEncoding(InputStream stream) throws IOException {
+		
+		byte[] header = new byte[4];
+		
+		stream.mark(header.length + 1);
+		
+		new DataInputStream(stream).readFully(header);
+
+		if (BinaryCodec.isPreface(header)) {
+			
+			int version = stream.read();
 			
-			inQueue.add(message);
-			inQueue.notifyAll();
+			if (version != BinaryCodec.VERSION)
+				throw new ProtocolException("Unsupported protocol version: " + version);
 			
+			return Encoding.BINARY;
 		}
 		
+		stream.reset();
+		
+		return Encoding.SERIALIZED;
 	}
 	
-	protected void onTerminate() {
-		
+	public Encoding getEncoding() {
+		return encoding;
 	}
 	
 	public InetAddress getRemoteAddress() {
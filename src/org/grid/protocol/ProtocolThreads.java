@@ -0,0 +1,87 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.protocol;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads that run protocol sockets and the client runtime. If the
+ * system property <tt>fri.pipt.protocol.threads</tt> is set to
+ * <tt>virtual</tt> and the JVM supports virtual threads, all threads are
+ * created as virtual threads. Otherwise ordinary platform threads are used.
+ */
+public class ProtocolThreads {
+
+	private static boolean virtual = false;
+
+	private static final ThreadFactory factory = createFactory();
+
+	private static ThreadFactory createFactory() {
+
+		if ("virtual".equalsIgnoreCase(System.getProperty("fri.pipt.protocol.threads"))) {
+
+			try {
+				// looked up reflectively, virtual threads are not available on all runtimes
+				Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+
+				ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+						.getMethod("factory").invoke(builder);
+
+				virtual = true;
+
+				return factory;
+
+			} catch (Exception e) {
+				System.err.println("Virtual threads are not supported by this JVM, using platform threads");
+			}
+
+		}
+
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				return new Thread(runnable);
+			}
+		};
+
+	}
+
+	public static Thread newThread(Runnable runnable) {
+
+		return factory.newThread(runnable);
+
+	}
+
+	public static Thread newThread(Runnable runnable, String name) {
+
+		Thread thread = factory.newThread(runnable);
+
+		thread.setName(name);
+
+		return thread;
+
+	}
+
+	public static boolean isVirtual() {
+
+		return virtual;
+
+	}
+
+}
@@ -0,0 +1,163 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.protocol;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * An event loop that serves many non-blocking protocol sockets with a single
+ * thread. Incoming messages are decoded and handled on the loop thread, outgoing
+ * messages are written when the channel becomes writable.
+ *
+ * @see ProtocolSocket#ProtocolSocket(java.nio.channels.SocketChannel, SelectorLoop)
+ */
+public class SelectorLoop implements Runnable {
+
+	private Selector selector;
+
+	private ConcurrentLinkedQueue<ProtocolSocket> registrations = new ConcurrentLinkedQueue<ProtocolSocket>();
+
+	private ConcurrentLinkedQueue<ProtocolSocket> writes = new ConcurrentLinkedQueue<ProtocolSocket>();
+
+	private Thread thread;
+
+	private boolean debug = Boolean.getBoolean("fri.pipt.protocol.debug");
+
+	public SelectorLoop(String name) throws IOException {
+
+		selector = Selector.open();
+
+		thread = new Thread(this, name);
+		thread.setDaemon(true);
+		thread.start();
+
+	}
+
+	void register(ProtocolSocket socket) {
+
+		registrations.add(socket);
+
+		selector.wakeup();
+
+	}
+
+	void requestWrite(ProtocolSocket socket) {
+
+		// on the loop thread the interest can be changed before the next select
+		if (Thread.currentThread() == thread) {
+
+			SelectionKey key = socket.getChannel().keyFor(selector);
+
+			if (key != null) {
+				try {
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				} catch (CancelledKeyException e) {}
+				return;
+			}
+		}
+
+		writes.add(socket);
+
+		selector.wakeup();
+
+	}
+
+	@Override
+	public void run() {
+
+		while (selector.isOpen()) {
+
+			try {
+
+				selector.select();
+
+				ProtocolSocket socket;
+
+				while ((socket = registrations.poll()) != null) {
+					try {
+						socket.getChannel().register(selector, SelectionKey.OP_READ, socket);
+					} catch (ClosedChannelException e) {
+						socket.close();
+					}
+				}
+
+				while ((socket = writes.poll()) != null) {
+					if (!socket.getChannel().isOpen())
+						continue;
+
+					SelectionKey key = socket.getChannel().keyFor(selector);
+
+					if (key == null) {
+						// not registered yet, try again in the next iteration
+						writes.add(socket);
+						break;
+					}
+
+					try {
+						key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+					} catch (CancelledKeyException e) {}
+				}
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while (keys.hasNext()) {
+
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					socket = (ProtocolSocket) key.attachment();
+
+					try {
+
+						if (key.isReadable())
+							socket.channelRead();
+
+						if (key.isValid() && key.isWritable()) {
+							if (!socket.channelWrite())
+								key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+						}
+
+					} catch (CancelledKeyException e) {
+						socket.close();
+					} catch (IOException e) {
+						if (debug)
+							e.printStackTrace();
+						socket.close();
+					} catch (RuntimeException e) {
+						// a malformed message or a failing handler only ends its own connection
+						e.printStackTrace();
+						socket.close();
+					}
+
+				}
+
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+		}
+
+	}
+
+}
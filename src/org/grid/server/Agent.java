@@ -17,11 +17,15 @@
  */
 package org.grid.server;
 
+import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.grid.arena.Arena;
+import org.grid.protocol.BufferPool;
+import org.grid.protocol.Position;
 import org.grid.protocol.Message.Direction;
 import org.grid.server.Field.Body;
 import org.grid.server.Field.BodyPosition;
@@ -41,6 +45,19 @@ public class Agent extends TeamBody {
 	private int id;
 
 	private Direction direction = Direction.NONE;
+	
+	private static final Direction[] DIRECTIONS = Direction.values();
+	
+	private static final int NO_COMMAND = -1;
+	
+	// the moves received from the client since the last step, stored as the
+	// direction that they lead to from every current direction, 3 bits each
+	private final AtomicInteger command = new AtomicInteger(NO_COMMAND);
+	
+	// the messages received from the client since the last step
+	private final AtomicInteger queuedMessages = new AtomicInteger();
+	
+	private final AtomicInteger rejectedMessages = new AtomicInteger();
 
 	private boolean alive = true;
 
@@ -58,17 +75,82 @@ public class Agent extends TeamBody {
 		return id;
 	}
 
+	/**
+	 * A planned move of an agent, see {@link Agent#plan(Field)}. Every agent
+	 * reuses one instance, so a move is only valid until the agent plans the 
+	 * next one.
+	 */
+	public static class Move {
+		
+		private final Agent agent;
+		
+		private Direction direction;
+		
+		private int originX, originY, targetX, targetY;
+		
+		private float offsetX, offsetY;
+		
+		private Move(Agent agent) {
+			this.agent = agent;
+		}
+		
+		public Agent getAgent() {
+			return agent;
+		}
+		
+		/**
+		 * Returns the cell that the agent occupied when the move was planned.
+		 */
+		public int getOriginX() {
+			return originX;
+		}
+		
+		public int getOriginY() {
+			return originY;
+		}
+		
+		/**
+		 * Returns the cell that the agent moves to.
+		 */
+		public int getTargetX() {
+			return targetX;
+		}
+		
+		public int getTargetY() {
+			return targetY;
+		}
+		
+	}
+	
+	private final Move next = new Move(this);
+	
 	public boolean move(Field arena) {
 
+		return commit(arena, plan(arena));
+
+	}
+	
+	/**
+	 * Computes the next position of the agent without changing the field or
+	 * the agent. The result only depends on the state of this agent, so moves
+	 * of different agents can be planned in parallel.
+	 * 
+	 * @param arena the field
+	 * @return the planned move or <tt>null</tt> if the agent does not move
+	 */
+	public Move plan(Field arena) {
+
 		synchronized (this) {
 
 			if (!isAlive())
-				return false;
+				return null;
 
-			BodyPosition position = arena.getPosition(this);
+			int x = arena.getBodyX(this), y = arena.getBodyY(this);
 
-			if (position == null)
-				return false;
+			if (x < 0)
+				return null;
+			
+			float offsetX = arena.getBodyOffsetX(this), offsetY = arena.getBodyOffsetY(this);
 
 			float weight = 1;
 			
@@ -78,49 +160,77 @@ public class Agent extends TeamBody {
 			
 			float speed = 0.1f / weight;
 			
+			Direction direction = this.direction;
+			
+			Move move = next;
+			
+			move.originX = x;
+			move.originY = y;
+			
+			int shift;
+			
 			switch (direction) {
 			case DOWN:
-				position.setOffsetY(position.getOffsetY() + speed);
-				if (Math.abs(position.getOffsetY()) < speed) {
-					position.setOffsetY(0);
-					direction = Direction.NONE;
-				}
-				break;
 			case UP:
-				position.setOffsetY(position.getOffsetY() - speed);
-				if (Math.abs(position.getOffsetY()) < speed) {
-					position.setOffsetY(0);
+				offsetY += direction == Direction.DOWN ? speed : -speed;
+				shift = cells(offsetY);
+				y += shift;
+				offsetY -= shift;
+				if (Math.abs(offsetY) < speed) {
+					offsetY = 0;
 					direction = Direction.NONE;
 				}
 				break;
 			case LEFT:
-				position.setOffsetX(position.getOffsetX() - speed);
-				if (Math.abs(position.getOffsetX()) < speed) {
-					position.setOffsetX(0);
-					direction = Direction.NONE;
-				}
-				break;
 			case RIGHT:
-				position.setOffsetX(position.getOffsetX() + speed);
-				if (Math.abs(position.getOffsetX()) < speed) {
-					position.setOffsetX(0);
+				offsetX += direction == Direction.RIGHT ? speed : -speed;
+				shift = cells(offsetX);
+				x += shift;
+				offsetX -= shift;
+				if (Math.abs(offsetX) < speed) {
+					offsetX = 0;
 					direction = Direction.NONE;
 				}
 				break;
 			default:
-				return false;
+				return null;
 			}
+			
+			move.targetX = x;
+			move.targetY = y;
+			move.offsetX = offsetX;
+			move.offsetY = offsetY;
+			move.direction = direction;
 
-			// System.out.printf("%.1f %.1f %s\n", position.getOffsetX(),
-			// position.getOffsetY(), direction);
+			return move;
+		}
+		
+	}
+	
+	/**
+	 * Applies a planned move to the field and resolves collisions, flag 
+	 * pickups and flag drops.
+	 * 
+	 * @param arena the field
+	 * @param move the move that was planned by this agent
+	 * @return true if the agent has moved
+	 */
+	public boolean commit(Field arena, Move move) {
 
-			if (!arena.putBody(this, position)) {
+		synchronized (this) {
+
+			// the agent may have been killed after the move was planned
+			if (move == null || !isAlive())
+				return false;
+
+			direction = move.direction;
 
-				Cell c = arena.getCell(position.getX(), position.getY());
+			if (!arena.putBody(this, move.targetX, move.targetY, move.offsetX, move.offsetY)) {
 
-				if (c != null) {
+				Body b = arena.getBody(move.targetX, move.targetY);
+
+				if (b != null) {
 
-					Body b = c.getBody();
 					if (b instanceof Flag) {
 						if (((Flag) b).getTeam() == getTeam()) {
 
@@ -150,22 +260,125 @@ public class Agent extends TeamBody {
 
 	}
 
+	/**
+	 * Returns the number of cells that an offset crosses, the same rounding
+	 * as {@link BodyPosition#setOffsetX(float)}.
+	 */
+	private static int cells(float offset) {
+		
+		if (offset <= -0.5)
+			return -(int) Math.ceil(-offset - 0.5);
+		
+		if (offset >= 0.5)
+			return (int) Math.ceil(offset - 0.5);
+		
+		return 0;
+		
+	}
+
 	public void setDirection(Direction direction) {
 
 		synchronized (this) {
-			if (this.direction == Direction.NONE) {
-				this.direction = direction;
-			}
+			this.direction = steer(this.direction, direction);
+		}
 
-			if ((this.direction == Direction.DOWN && direction == Direction.UP)
-					|| (this.direction == Direction.UP && direction == Direction.DOWN)
-					|| (this.direction == Direction.LEFT && direction == Direction.RIGHT)
-					|| (this.direction == Direction.RIGHT && direction == Direction.LEFT)) {
-				this.direction = direction;
+	}
+	
+	/**
+	 * Stores a move for the next step without locking. Several moves in one
+	 * step have the same effect as calling {@link #setDirection(Direction)}
+	 * for each of them in order.
+	 * 
+	 * @param direction the requested direction
+	 * @return <tt>true</tt> if this is the first move since the last step
+	 */
+	boolean command(Direction direction) {
+		
+		if (direction == null)
+			return false;
+		
+		while (true) {
+			
+			int current = command.get();
+			
+			int next = 0;
+			
+			for (Direction d : DIRECTIONS) {
+				Direction from = current == NO_COMMAND ? d : DIRECTIONS[(current >> (d.ordinal() * 3)) & 7];
+				next |= steer(from, direction).ordinal() << (d.ordinal() * 3);
 			}
-
+			
+			if (command.compareAndSet(current, next))
+				return current == NO_COMMAND;
+			
 		}
-
+		
+	}
+	
+	/**
+	 * Reserves a place for a message that waits for the next step.
+	 * 
+	 * @param limit the maximum number of waiting messages
+	 * @return <tt>false</tt> if the limit is reached
+	 */
+	boolean queueMessage(int limit) {
+		
+		if (queuedMessages.incrementAndGet() <= limit)
+			return true;
+		
+		queuedMessages.decrementAndGet();
+		
+		rejectedMessages.incrementAndGet();
+		
+		return false;
+		
+	}
+	
+	/**
+	 * Frees the place of a message reserved with {@link #queueMessage(int)}.
+	 * 
+	 * @return the number of messages that were rejected since the last call
+	 */
+	int dequeueMessage() {
+		
+		queuedMessages.decrementAndGet();
+		
+		return rejectedMessages.getAndSet(0);
+		
+	}
+	
+	/**
+	 * Applies the move stored by {@link #command(Direction)}.
+	 */
+	void applyCommand() {
+		
+		int requested = command.getAndSet(NO_COMMAND);
+		
+		if (requested == NO_COMMAND)
+			return;
+		
+		synchronized (this) {
+			direction = DIRECTIONS[(requested >> (direction.ordinal() * 3)) & 7];
+		}
+		
+	}
+	
+	/**
+	 * An agent can only turn around while it is moving.
+	 */
+	private static Direction steer(Direction current, Direction requested) {
+		
+		if (current == Direction.NONE)
+			return requested;
+		
+		if ((current == Direction.DOWN && requested == Direction.UP)
+				|| (current == Direction.UP && requested == Direction.DOWN)
+				|| (current == Direction.LEFT && requested == Direction.RIGHT)
+				|| (current == Direction.RIGHT && requested == Direction.LEFT))
+			return requested;
+		
+		return current;
+		
 	}
 
 	public void die() {
@@ -194,7 +407,91 @@ public class Agent extends TeamBody {
 		return flags.isEmpty() ? Arena.TILE_AGENT : Arena.TILE_AGENT_FLAG;
 	}
 
-	public void pushMessage(int to, byte[] message, int delay) {
+	/**
+	 * Copies the state of the agent for a checkpoint.
+	 * 
+	 * @param arena the field
+	 * @return the state or <tt>null</tt> if the agent is not on the field
+	 */
+	Checkpoint.AgentState checkpoint(Field arena) {
+		
+		synchronized (this) {
+			
+			Cell cell = arena.getBodyCell(this);
+			
+			if (cell == null)
+				return null;
+			
+			Checkpoint.AgentState state = new Checkpoint.AgentState();
+			
+			state.id = id;
+			state.x = cell.getX();
+			state.y = cell.getY();
+			state.offsetX = cell.getBodyOffsetX();
+			state.offsetY = cell.getBodyOffsetY();
+			state.direction = (byte) direction.ordinal();
+			
+			state.flags = new float[flags.size()];
+			
+			int i = 0;
+			for (Flag flag : flags)
+				state.flags[i++] = flag.getWeight();
+			
+			synchronized (messageQueue) {
+				
+				state.to = new int[messageQueue.size()];
+				state.delay = new int[messageQueue.size()];
+				state.payload = new byte[messageQueue.size()][];
+				
+				i = 0;
+				for (MessageContainter m : messageQueue) {
+					ByteBuffer payload = m.getMessage().duplicate();
+					state.to[i] = m.getTo();
+					state.delay[i] = m.getDelay();
+					state.payload[i] = new byte[payload.remaining()];
+					payload.get(state.payload[i]);
+					i++;
+				}
+				
+			}
+			
+			return state;
+		}
+		
+	}
+	
+	/**
+	 * Recreates an agent from a checkpoint and puts it on the field.
+	 * 
+	 * @param team the team of the agent
+	 * @param state the state of the agent
+	 * @param arena the field
+	 * @return the agent
+	 */
+	static Agent restore(Team team, Checkpoint.AgentState state, Field arena) {
+		
+		Agent agent = new Agent(team, state.id);
+		
+		agent.direction = Direction.values()[state.direction];
+		
+		for (float weight : state.flags)
+			agent.flags.add(team.newFlag(weight));
+		
+		for (int i = 0; i < state.payload.length; i++) {
+			ByteBuffer payload = BufferPool.acquire(state.payload[i].length);
+			payload.put(state.payload[i]);
+			payload.flip();
+			agent.messageQueue.add(new MessageContainter(state.to[i], payload, state.delay[i]));
+		}
+		
+		if (!arena.putBody(agent, new BodyPosition(state.x, state.y, state.offsetX, state.offsetY)))
+			arena.putBodyCloseTo(agent, new Position(state.x, state.y));
+		
+		return agent;
+		
+	}
+	
+	public void pushMessage(int to, ByteBuffer message, int delay) {
 		
 		synchronized (messageQueue) {
 			messageQueue.add(new MessageContainter(to, message, delay));	
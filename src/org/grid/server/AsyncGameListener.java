@@ -0,0 +1,370 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import org.grid.server.Field.BodyPosition;
+
+/**
+ * Delivers game events to a listener on a separate thread, so that a slow
+ * listener does not delay the game. The events are copied to a preallocated
+ * ring buffer and delivered in the order in which they were fired. When the
+ * buffer is full the events are handled according to the {@link Policy}.
+ *
+ * The moves of a step are passed on as a batch. A listener that does not
+ * implement {@link PositionBatchListener} receives them as single position
+ * events.
+ *
+ * Listeners that have to see the game in the same state as the event should
+ * be added to the game directly, they are still called synchronously. With
+ * the {@link Policy#BLOCK} policy the game thread may wait for the listener,
+ * so the listener must not call the synchronized methods of {@link Game}.
+ */
+public class AsyncGameListener implements PositionBatchListener, Runnable {
+
+	public static enum Policy {
+		/**
+		 * The game waits until there is space in the buffer, no events are lost
+		 */
+		BLOCK,
+		/**
+		 * The new event is dropped
+		 */
+		DROP_NEWEST,
+		/**
+		 * The oldest queued event is dropped to make space for the new one
+		 */
+		DROP_OLDEST
+	}
+
+	private static final int STEP = 0, POSITION = 1, MESSAGE = 2, POSITIONS = 3;
+
+	private static class Event {
+
+		private int type;
+
+		private Team team;
+
+		private int from, to, length;
+
+		private BodyPosition position;
+
+		// reused, exchanged between the buffer and the delivery thread
+		private PositionBatch batch;
+
+		private void copy(Event e) {
+			type = e.type;
+			team = e.team;
+			from = e.from;
+			to = e.to;
+			length = e.length;
+			position = e.position;
+			if (type == POSITIONS) {
+				PositionBatch b = batch;
+				batch = e.batch;
+				e.batch = b;
+			}
+		}
+
+	}
+
+	private final GameListener listener;
+
+	private final Policy policy;
+
+	private final Event[] events;
+
+	private long head = 0, tail = 0;
+
+	private long dropped = 0;
+
+	private boolean closed = false;
+
+	private Thread thread;
+
+	/**
+	 * Creates a new asynchronous listener and starts its thread.
+	 *
+	 * @param listener the listener that receives the events
+	 * @param capacity the number of events that can be queued
+	 * @param policy what to do with events when the buffer is full
+	 */
+	public AsyncGameListener(GameListener listener, int capacity, Policy policy) {
+
+		this.listener = listener;
+		this.policy = policy == null ? Policy.BLOCK : policy;
+
+		events = new Event[Math.max(16, capacity)];
+
+		for (int i = 0; i < events.length; i++)
+			events[i] = new Event();
+
+		thread = new Thread(this, "Listener " + listener.getClass().getSimpleName());
+		thread.setDaemon(true);
+		thread.start();
+
+	}
+
+	/**
+	 * Parses the name of a policy as used in the game file.
+	 *
+	 * @param name one of <tt>block</tt>, <tt>drop</tt> or <tt>drop-oldest</tt>
+	 * @param def the policy used if the name is not known
+	 * @return the policy
+	 */
+	public static Policy parsePolicy(String name, Policy def) {
+
+		if ("block".equalsIgnoreCase(name))
+			return Policy.BLOCK;
+
+		if ("drop".equalsIgnoreCase(name))
+			return Policy.DROP_NEWEST;
+
+		if ("drop-oldest".equalsIgnoreCase(name))
+			return Policy.DROP_OLDEST;
+
+		return def;
+	}
+
+	public GameListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Returns the number of events that were not delivered because the
+	 * buffer was full.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	public synchronized int getQueued() {
+		return (int) (tail - head);
+	}
+
+	/**
+	 * Stops the delivery thread, the queued events are discarded.
+	 */
+	public synchronized void close() {
+
+		closed = true;
+
+		notifyAll();
+
+	}
+
+	@Override
+	public void message(Team team, int from, int to, int length) {
+
+		synchronized (this) {
+
+			Event e = claim();
+
+			if (e == null)
+				return;
+
+			e.type = MESSAGE;
+			e.team = team;
+			e.from = from;
+			e.to = to;
+			e.length = length;
+			e.position = null;
+
+			publish();
+		}
+
+	}
+
+	@Override
+	public void position(Team team, int id, BodyPosition p) {
+
+		synchronized (this) {
+
+			Event e = claim();
+
+			if (e == null)
+				return;
+
+			e.type = POSITION;
+			e.team = team;
+			e.from = id;
+			e.position = p;
+
+			publish();
+		}
+
+	}
+
+	@Override
+	public void positions(PositionBatch batch) {
+
+		synchronized (this) {
+
+			Event e = claim();
+
+			if (e == null)
+				return;
+
+			e.type = POSITIONS;
+			e.team = null;
+			e.position = null;
+
+			if (e.batch == null)
+				e.batch = new PositionBatch();
+
+			e.batch.copy(batch);
+
+			publish();
+		}
+
+	}
+
+	@Override
+	public void step() {
+
+		synchronized (this) {
+
+			Event e = claim();
+
+			if (e == null)
+				return;
+
+			e.type = STEP;
+			e.team = null;
+			e.position = null;
+
+			publish();
+		}
+
+	}
+
+	@Override
+	public void run() {
+
+		Event event = new Event();
+
+		while (true) {
+
+			synchronized (this) {
+
+				while (head == tail && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+
+				if (closed)
+					return;
+
+				Event e = events[(int) (head % events.length)];
+
+				event.copy(e);
+
+				// do not keep references to teams and positions in the buffer
+				e.team = null;
+				e.position = null;
+
+				head++;
+
+				if (policy == Policy.BLOCK)
+					notifyAll();
+			}
+
+			try {
+				switch (event.type) {
+				case STEP:
+					listener.step();
+					break;
+				case POSITION:
+					listener.position(event.team, event.from, event.position);
+					break;
+				case MESSAGE:
+					listener.message(event.team, event.from, event.to, event.length);
+					break;
+				case POSITIONS:
+					deliver(event.batch);
+					event.batch.clear();
+					break;
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+
+		}
+
+	}
+
+	private void deliver(PositionBatch batch) {
+
+		if (listener instanceof PositionBatchListener) {
+			((PositionBatchListener) listener).positions(batch);
+			return;
+		}
+
+		for (int i = 0; i < batch.size(); i++)
+			listener.position(batch.getTeam(i), batch.getId(i), new BodyPosition(batch.getX(i), batch.getY(i),
+					batch.getOffsetX(i), batch.getOffsetY(i)));
+
+	}
+
+	/**
+	 * Returns the slot for the next event or <tt>null</tt> if the event has to
+	 * be dropped. Must be called while holding the lock.
+	 */
+	private Event claim() {
+
+		if (closed)
+			return null;
+
+		while (tail - head >= events.length) {
+
+			switch (policy) {
+			case DROP_NEWEST:
+				dropped++;
+				return null;
+			case DROP_OLDEST:
+				dropped++;
+				head++;
+				break;
+			default:
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return null;
+				}
+				if (closed)
+					return null;
+			}
+		}
+
+		return events[(int) (tail % events.length)];
+
+	}
+
+	private void publish() {
+
+		tail++;
+
+		if (tail - head == 1)
+			notifyAll();
+
+	}
+
+}
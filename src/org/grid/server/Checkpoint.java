@@ -0,0 +1,303 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A copy of the dynamic state of a game: the step counters, the score, flags
+ * and identifiers of every team and the position, direction, carried flags
+ * and pending messages of every agent. The map itself is not stored, it is
+ * loaded from the game file when the game is restored.
+ *
+ * The copy is taken by the game thread and only contains primitive values, so
+ * it can be written to a file by another thread while the game continues.
+ */
+class Checkpoint {
+
+	private static final int MAGIC = 0x41464350;
+
+	private static final int VERSION = 1;
+
+	private static final Charset CHARSET = Charset.forName("UTF-8");
+
+	static class AgentState {
+
+		int id, x, y;
+
+		float offsetX, offsetY;
+
+		byte direction;
+
+		float[] flags;
+
+		int[] to, delay;
+
+		byte[][] payload;
+
+	}
+
+	static class TeamState {
+
+		String name;
+
+		int score;
+
+		int[] ids;
+
+		int[] flagX, flagY;
+
+		float[] flagWeight;
+
+		AgentState[] agents;
+
+	}
+
+	int step, spawnCounter, flagSpawnCounter;
+
+	TeamState[] teams;
+
+	/**
+	 * Writes the checkpoint to a file. The file is written through a memory
+	 * map under a temporary name and renamed when it is complete, so an
+	 * interrupted write does not destroy the previous checkpoint.
+	 *
+	 * @param file the file
+	 * @throws IOException
+	 */
+	void save(File file) throws IOException {
+
+		File temporary = new File(file.getPath() + ".tmp");
+
+		temporary.delete();
+
+		RandomAccessFile raf = new RandomAccessFile(temporary, "rw");
+
+		try {
+
+			FileChannel channel = raf.getChannel();
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, getSize());
+
+			write(buffer);
+
+			buffer.force();
+
+		} finally {
+			raf.close();
+		}
+
+		if (!temporary.renameTo(file)) {
+			file.delete();
+			if (!temporary.renameTo(file))
+				throw new IOException("Unable to replace " + file);
+		}
+
+	}
+
+	/**
+	 * Reads a checkpoint from a file.
+	 *
+	 * @param file the file
+	 * @return the checkpoint
+	 * @throws IOException if the file is not a valid checkpoint
+	 */
+	static Checkpoint load(File file) throws IOException {
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+
+			FileChannel channel = raf.getChannel();
+
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+
+		} catch (RuntimeException e) {
+			throw new IOException("Corrupted checkpoint " + file, e);
+		} finally {
+			raf.close();
+		}
+
+	}
+
+	int getSize() {
+
+		int size = 22;
+
+		for (TeamState t : teams) {
+
+			size += getStringSize(t.name) + 14 + t.ids.length * 4 + t.flagWeight.length * 12;
+
+			for (AgentState a : t.agents) {
+
+				size += 27 + a.flags.length * 4;
+
+				for (byte[] p : a.payload)
+					size += 12 + p.length;
+
+			}
+		}
+
+		return size;
+
+	}
+
+	void write(ByteBuffer buffer) {
+
+		buffer.putInt(MAGIC);
+		buffer.putInt(VERSION);
+		buffer.putInt(step);
+		buffer.putInt(spawnCounter);
+		buffer.putInt(flagSpawnCounter);
+
+		buffer.putShort((short) teams.length);
+
+		for (TeamState t : teams) {
+
+			byte[] name = t.name.getBytes(CHARSET);
+			buffer.putShort((short) name.length);
+			buffer.put(name);
+
+			buffer.putInt(t.score);
+
+			buffer.putInt(t.ids.length);
+			for (int id : t.ids)
+				buffer.putInt(id);
+
+			buffer.putInt(t.flagWeight.length);
+			for (int i = 0; i < t.flagWeight.length; i++) {
+				buffer.putInt(t.flagX[i]);
+				buffer.putInt(t.flagY[i]);
+				buffer.putFloat(t.flagWeight[i]);
+			}
+
+			buffer.putShort((short) t.agents.length);
+
+			for (AgentState a : t.agents) {
+
+				buffer.putInt(a.id);
+				buffer.putInt(a.x);
+				buffer.putInt(a.y);
+				buffer.putFloat(a.offsetX);
+				buffer.putFloat(a.offsetY);
+				buffer.put(a.direction);
+
+				buffer.putShort((short) a.flags.length);
+				for (float w : a.flags)
+					buffer.putFloat(w);
+
+				buffer.putInt(a.payload.length);
+				for (int i = 0; i < a.payload.length; i++) {
+					buffer.putInt(a.to[i]);
+					buffer.putInt(a.delay[i]);
+					buffer.putInt(a.payload[i].length);
+					buffer.put(a.payload[i]);
+				}
+			}
+		}
+
+	}
+
+	static Checkpoint read(ByteBuffer buffer) throws IOException {
+
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+			throw new IOException("Not a checkpoint or unsupported version");
+
+		Checkpoint c = new Checkpoint();
+
+		c.step = buffer.getInt();
+		c.spawnCounter = buffer.getInt();
+		c.flagSpawnCounter = buffer.getInt();
+
+		c.teams = new TeamState[buffer.getShort()];
+
+		for (int j = 0; j < c.teams.length; j++) {
+
+			TeamState t = new TeamState();
+
+			byte[] name = new byte[buffer.getShort()];
+			buffer.get(name);
+			t.name = new String(name, CHARSET);
+
+			t.score = buffer.getInt();
+
+			t.ids = new int[buffer.getInt()];
+			for (int i = 0; i < t.ids.length; i++)
+				t.ids[i] = buffer.getInt();
+
+			int flags = buffer.getInt();
+			t.flagX = new int[flags];
+			t.flagY = new int[flags];
+			t.flagWeight = new float[flags];
+			for (int i = 0; i < flags; i++) {
+				t.flagX[i] = buffer.getInt();
+				t.flagY[i] = buffer.getInt();
+				t.flagWeight[i] = buffer.getFloat();
+			}
+
+			t.agents = new AgentState[buffer.getShort()];
+
+			for (int k = 0; k < t.agents.length; k++) {
+
+				AgentState a = new AgentState();
+
+				a.id = buffer.getInt();
+				a.x = buffer.getInt();
+				a.y = buffer.getInt();
+				a.offsetX = buffer.getFloat();
+				a.offsetY = buffer.getFloat();
+				a.direction = buffer.get();
+
+				a.flags = new float[buffer.getShort()];
+				for (int i = 0; i < a.flags.length; i++)
+					a.flags[i] = buffer.getFloat();
+
+				int messages = buffer.getInt();
+				a.to = new int[messages];
+				a.delay = new int[messages];
+				a.payload = new byte[messages][];
+				for (int i = 0; i < messages; i++) {
+					a.to[i] = buffer.getInt();
+					a.delay[i] = buffer.getInt();
+					a.payload[i] = new byte[buffer.getInt()];
+					buffer.get(a.payload[i]);
+				}
+
+				t.agents[k] = a;
+			}
+
+			c.teams[j] = t;
+		}
+
+		return c;
+
+	}
+
+	private static int getStringSize(String value) {
+
+		return 2 + value.getBytes(CHARSET).length;
+
+	}
+
+}
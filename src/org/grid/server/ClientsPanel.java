@@ -209,6 +209,8 @@ public class ClientsPanel extends JPanel {
 		
 		JLabel agentInfo = new JLabel();
 		
+		JLabel queueInfo = new JLabel();
+		
 		JPanel buttons;
 		
 		JButton disconnect = new JButton(new AbstractAction("Disconnect") {
@@ -256,9 +258,11 @@ public class ClientsPanel extends JPanel {
 			
 			clientInfo.setFont(getFont().deriveFont(Font.BOLD, 12.0f));
 			agentInfo.setFont(getFont().deriveFont(Font.PLAIN, 9.0f));
+			queueInfo.setFont(getFont().deriveFont(Font.PLAIN, 9.0f));
 			
 			box.add(clientInfo);
 			box.add(agentInfo);
+			box.add(queueInfo);
 			
 			clientInfo.setText(client.toString());
 			
@@ -311,6 +315,10 @@ public class ClientsPanel extends JPanel {
 				return;
 			}
 			traffic.push((float)messages / game.getSpeed());
+			
+			int[] queue = client.queryQueueCounters();
+			
+			queueInfo.setText("Queued: " + queue[0] + ", dropped: " + queue[1]);
 		}
 
 		@Override
@@ -318,6 +326,7 @@ public class ClientsPanel extends JPanel {
 			setBackground(normalBackground);
 			clientInfo.setBackground(normalBackground);
 			agentInfo.setBackground(normalBackground);
+			queueInfo.setBackground(normalBackground);
 			
 			remove(buttons);
 			
@@ -329,6 +338,7 @@ public class ClientsPanel extends JPanel {
 			setBackground(selectedBackground);
 			clientInfo.setBackground(selectedBackground);
 			agentInfo.setBackground(selectedBackground);
+			queueInfo.setBackground(selectedBackground);
 			
 			add(buttons, BorderLayout.SOUTH);
 			
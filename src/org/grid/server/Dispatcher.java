@@ -18,19 +18,29 @@
 package org.grid.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.HashSet;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.grid.protocol.BufferPool;
 import org.grid.protocol.Message;
 import org.grid.protocol.Neighborhood;
 import org.grid.protocol.ProtocolSocket;
+import org.grid.protocol.ProtocolSocket.OverflowPolicy;
+import org.grid.protocol.SelectorLoop;
 import org.grid.protocol.Message.AcknowledgeMessage;
+import org.grid.protocol.Message.Direction;
 import org.grid.protocol.Message.MoveMessage;
 import org.grid.protocol.Message.RegisterMessage;
 import org.grid.protocol.Message.ScanMessage;
 import org.grid.protocol.Message.SendMessage;
+import org.grid.protocol.Message.SubscribeMessage;
 
 
 public class Dispatcher implements Runnable {
@@ -39,7 +49,7 @@ public class Dispatcher implements Runnable {
 	
 	public class Client extends ProtocolSocket {
 
-		private Status status = Status.UNKNOWN;
+		private volatile Status status = Status.UNKNOWN;
 		
 		private Team team;
 		
@@ -47,9 +57,30 @@ public class Dispatcher implements Runnable {
 		
 		private int totalMessages = 0, scanMessages = 0, msgMessages = 0;
 		
+		private boolean deltaState = false;
+		
+		private Neighborhood lastState = null;
+		
+		private int lastX, lastY;
+		
+		private int deltaCount = 0;
+		
+		private volatile int subscription = 0;
+		
+		private HostedGame hosted = defaultGame;
+		
 		public Client(Socket socket)
 				throws IOException {
-			super(socket);
+			// accept both binary and serialized clients
+			super(socket, null);
+			setOutgoingLimit(hosted.queueLimit, hosted.queuePolicy);
+			listeners = new Vector<ClientListener>();
+		}
+		
+		public Client(SocketChannel channel, SelectorLoop loop)
+				throws IOException {
+			super(channel, loop);
+			setOutgoingLimit(hosted.queueLimit, hosted.queuePolicy);
 			listeners = new Vector<ClientListener>();
 		}
 		
@@ -67,7 +98,23 @@ public class Dispatcher implements Runnable {
 				
 				if (message instanceof RegisterMessage) {
 
-					team = game.getTeam(((RegisterMessage) message).getTeam());
+					String id = ((RegisterMessage) message).getGame();
+					
+					HostedGame joined = id == null ? defaultGame : games.get(id);
+					
+					if (joined == null) {
+						
+						Main.log("Unknown game: " + id);
+						close();
+						return;
+					}
+					
+					if (joined != hosted) {
+						hosted = joined;
+						setOutgoingLimit(hosted.queueLimit, hosted.queuePolicy);
+					}
+					
+					team = hosted.game.getTeam(((RegisterMessage) message).getTeam());
 	
 					if (team == null) {
 						
@@ -90,6 +137,8 @@ public class Dispatcher implements Runnable {
 						
 					}
 					
+					deltaState = ((RegisterMessage) message).hasFeature(RegisterMessage.FEATURE_DELTA_STATE);
+					
 					Main.log("New client joined team " + team + ": " + this);
 					
 					team.addClient(this);
@@ -121,9 +170,14 @@ public class Dispatcher implements Runnable {
 					
 					scanMessages++;
 					
-					Neighborhood n = game.scanNeighborhood(neighborhoodSize, getAgent());
+					sendState(((ScanMessage) message).getStamp());
+					
+					return;
+				}
+				
+				if (message instanceof SubscribeMessage) {
 					
-					sendMessage(new Message.StateMessage(getAgent().getDirection(), n, agent.hasFlag()));
+					subscription = Math.max(0, ((SubscribeMessage) message).getInterval());
 					
 					return;
 				}
@@ -134,19 +188,21 @@ public class Dispatcher implements Runnable {
 					
 					int to = ((SendMessage) message).getTo();
 					
-					if (((SendMessage)message).getMessage() == null || ((SendMessage)message).getMessage().length > maxMessageSize) {
+					if (((SendMessage)message).getLength() < 0 || ((SendMessage)message).getLength() > hosted.maxMessageSize) {
 						Main.log("Message from %d to %d rejected: too long", agent.getId(), to);
+						message.release();
 						return;
 					}
 					
-					game.message(team, agent.getId(), to, ((SendMessage)message).getMessage());						
+					// the payload buffer is handed over and released once it is delivered
+					hosted.game.message(team, agent.getId(), to, ((SendMessage)message).getPayload());						
 					
 					return;
 				}				
 
 				if (message instanceof MoveMessage) {
 										
-					game.move(team, agent.getId(), ((MoveMessage) message).getDirection());
+					hosted.game.move(team, agent.getId(), ((MoveMessage) message).getDirection());
 					
 					return;
 				}	
@@ -157,9 +213,100 @@ public class Dispatcher implements Runnable {
 			
 		}
 
+		/**
+		 * Sends the state to the client if it has subscribed to it for the
+		 * given step. Called by the game after the agents have moved.
+		 * 
+		 * @param step the current step of the game
+		 */
+		void pushState(int step) {
+			
+			int interval = subscription;
+			
+			if (interval > 0 && step % interval == 0)
+				sendState(step);
+			
+		}
+		
+		private void sendState(int stamp) {
+			
+			Agent agent = this.agent;
+			
+			if (agent == null)
+				return;
+			
+			// answered without locking the game, all values come from the same step
+			FieldSnapshot snapshot;
+			
+			long view;
+			
+			do {
+				snapshot = hosted.game.getSnapshot();
+				view = snapshot.getAgent(agent);
+			} while (view == FieldSnapshot.STALE);
+			
+			boolean found = view != FieldSnapshot.NONE;
+			
+			int x = FieldSnapshot.getX(view), y = FieldSnapshot.getY(view);
+			
+			Neighborhood n = found ? snapshot.scan(hosted.neighborhoodSize, agent.getTeam(), x, y) : null;
+			
+			Direction direction = found ? FieldSnapshot.getDirection(view) : agent.getDirection();
+			
+			boolean flag = found ? FieldSnapshot.hasFlag(view) : agent.hasFlag();
+			
+			if (deltaState && n != null) {
+				
+				synchronized (this) {
+				
+					int[] changes = null;
+					
+					if (deltaCount < hosted.keyframeInterval && lastState != null)
+						changes = n.difference(lastState, x - lastX, y - lastY);
+					
+					// fall back to a keyframe if the difference is not smaller
+					if (changes != null && changes.length * 4 < (n.getSize() * 2 + 1) * (n.getSize() * 2 + 1)) {
+						
+						Message.StateDeltaMessage delta = new Message.StateDeltaMessage(direction, flag, 
+								x - lastX, y - lastY, changes);
+						delta.setStamp(stamp);
+						delta.setNeighborhood(n);
+						
+						deltaCount++;
+						lastState = n;
+						lastX = x;
+						lastY = y;
+						
+						sendMessage(delta);
+						return;
+					}
+					
+					deltaCount = 0;
+					lastState = n;
+					lastX = x;
+					lastY = y;
+					
+					// keyframe has to be queued before any delta that is based on it
+					Message.StateMessage state = new Message.StateMessage(direction, n, flag);
+					state.setStamp(stamp);
+					sendMessage(state);
+					return;
+				}
+			}
+			
+			Message.StateMessage state = new Message.StateMessage(direction, n, flag);
+			state.setStamp(stamp);
+			sendMessage(state);
+			
+		}
+		
 		public Agent getAgent() {
 			return agent;
 		}
+		
+		public Status getStatus() {
+			return status;
+		}
 
 		public Team getTeam() {
 			return team;
@@ -174,12 +321,19 @@ public class Dispatcher implements Runnable {
 			
 			this.agent = agent;
 			
+			// a new agent has to subscribe again
+			subscription = 0;
+			
+			synchronized (this) {
+				lastState = null;
+			}
+			
 			agent(agent);
 			
 			if (agent == null)
 				return;
 			
-			sendMessage(new Message.InitializeMessage(agent.getId(), maxMessageSize, game.getSpeed()));
+			sendMessage(new Message.InitializeMessage(agent.getId(), hosted.maxMessageSize, hosted.game.getSpeed()));
 			
 		}
 
@@ -211,6 +365,17 @@ public class Dispatcher implements Runnable {
 				return tmp;
 			}
 		}
+		
+		/**
+		 * Returns the number of messages that wait to be sent to the client and
+		 * the number of messages that were dropped because the client did not 
+		 * read them fast enough.
+		 * 
+		 * @return an array with the queue depth and the number of dropped messages
+		 */
+		public int[] queryQueueCounters() {
+			return new int[] {getOutgoingDepth(), getDroppedMessages()};
+		}
 
 		private Vector<ClientListener> listeners = new Vector<ClientListener>();
 
@@ -272,27 +437,138 @@ public class Dispatcher implements Runnable {
 			
 		}
 		
+		public void send(int from, ByteBuffer message) {
+			
+			if (status != Status.USED) {
+				BufferPool.release(message);
+				return;
+			}
+			
+			sendMessage(new Message.ReceiveMessage(from, message));
+			
+		}
+		
 	}
 	
 	private HashSet<Client> clients = new HashSet<Client>();
 	
 	private ServerSocket socket;
 	
-	private Game game;
+	private ServerSocketChannel channel;
 	
-	private int maxMessageSize = 1024;
+	private SelectorLoop[] loops;
 	
-	private int neighborhoodSize = 5;	
+	/**
+	 * A game served by the dispatcher together with its protocol settings.
+	 */
+	private static class HostedGame {
+		
+		private Game game;
+		
+		private int maxMessageSize = 1024;
+		
+		private int neighborhoodSize = 5;	
+		
+		private int keyframeInterval = 20;
+		
+		private int queueLimit = 0;
+		
+		private OverflowPolicy queuePolicy = OverflowPolicy.COALESCE;
+		
+		public HostedGame(Game game) {
+			
+			this.game = game;
+			
+			this.maxMessageSize = game.getProperty("message.size", 256);
+
+			this.neighborhoodSize = game.getNeighborhoodSize();
+			
+			this.keyframeInterval = game.getProperty("message.keyframe", 20);
+			
+			this.queueLimit = game.getProperty("message.queue", 0);
+			
+			String policy = game.getProperty("message.queue.policy", "coalesce");
+			
+			if ("drop".equalsIgnoreCase(policy))
+				this.queuePolicy = OverflowPolicy.DROP_OLDEST;
+			else if ("disconnect".equalsIgnoreCase(policy))
+				this.queuePolicy = OverflowPolicy.DISCONNECT;
+			else
+				this.queuePolicy = OverflowPolicy.COALESCE;
+			
+		}
+		
+	}
+	
+	private HostedGame defaultGame;
+	
+	private ConcurrentHashMap<String, HostedGame> games = new ConcurrentHashMap<String, HostedGame>();
 	
+	/**
+	 * Creates a dispatcher that serves a single game. The server socket
+	 * settings are taken from the game.
+	 * 
+	 * @param port the port to listen on
+	 * @param game the game that clients join if they do not request a game
+	 * @throws IOException
+	 */
 	public Dispatcher(int port, Game game) throws IOException {
 		
-		socket = new ServerSocket(port);
+		this.defaultGame = new HostedGame(game);
 		
-		this.game = game;
+		int selectors = game.getProperty("server.selectors", 0);
 		
-		this.maxMessageSize = game.getProperty("message.size", 256);
-
-		this.neighborhoodSize = game.getNeighborhoodSize();
+		if (selectors > 0) {
+			
+			channel = ServerSocketChannel.open();
+			channel.socket().bind(new InetSocketAddress(port));
+			
+			loops = new SelectorLoop[selectors];
+			
+			for (int i = 0; i < selectors; i++)
+				loops[i] = new SelectorLoop("Selector " + (i + 1));
+			
+			Main.log("Serving clients with %d selector threads", selectors);
+			
+		} else socket = new ServerSocket(port);
+		
+	}
+	
+	/**
+	 * Adds a game that clients can join by its id.
+	 * 
+	 * @param id the id that the clients send in the register message
+	 * @param game the game
+	 */
+	public void addGame(String id, Game game) {
+		
+		games.put(id, game == defaultGame.game ? defaultGame : new HostedGame(game));
+		
+	}
+	
+	/**
+	 * Removes a game and disconnects its clients.
+	 * 
+	 * @param id the id of the game
+	 */
+	public void removeGame(String id) {
+		
+		HostedGame hosted = games.remove(id);
+		
+		if (hosted == null)
+			return;
+		
+		Vector<Client> remove = new Vector<Client>();
+		
+		synchronized (clients) {
+			for (Client c : clients) {
+				if (c.hosted == hosted)
+					remove.add(c);
+			}
+		}
+		
+		for (Client c : remove)
+			c.close();
 		
 	}
 
@@ -326,12 +602,28 @@ public class Dispatcher implements Runnable {
 		traffic.start();
 		
 		
+		int next = 0;
+		
 		while (true) {
 			try {
+				
+				if (channel != null) {
+					SocketChannel sck = channel.accept();
+					sck.socket().setTcpNoDelay(true);
+					synchronized (clients) {
+						Client client = new Client(sck, loops[next++ % loops.length]);
+						clients.add(client);
+						client.start();
+					}
+					continue;
+				}
+				
 				Socket sck = socket.accept();
 				sck.setTcpNoDelay(true);
 				synchronized (clients) {
-					clients.add(new Client(sck));
+					Client client = new Client(sck);
+					clients.add(client);
+					client.start();
 				}
 				
 				
@@ -24,9 +24,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -132,6 +132,9 @@ public class Field implements Arena {
 		
 		private int tile;
 		
+		// the index of the body in the table of the field, -1 if not on a field
+		private int slot = -1;
+		
 		public Body(int tile) {
 			this.tile = tile;
 		}
@@ -247,86 +250,118 @@ public class Field implements Arena {
 		
 	}
 	
+	/**
+	 * A view of a single cell of the field. Cells are not stored, a new view
+	 * is created when a cell is requested, two views of the same cell are
+	 * equal.
+	 */
 	public class Cell {
 
-		private Position position;
-		
-		private float offsetX = 0, offsetY = 0;
-		
-		private Body body = null;
+		private final int index;
 		
-		private int tile;
-		
-		protected Cell(Position position, int tile) {
+		private Cell(int index) {
 
-			this.position = position;
-			this.tile = tile;
+			this.index = index;
 			
 		}
 		
 		public boolean isEmpty() {
 			
-			return body == null;
+			return bodies[index] == 0;
 			
 		}
 		
 		public int getTile() {
 			
-			return tile;
+			return tiles[index];
 			
 		}
 
 		public Body getBody() {
 			
-			return body;
+			return body(bodies[index]);
 			
 		}
 		
 		public Position getPosition() {
-			return new Position(this.position);
+			return new Position(index % width, index / width);
+		}
+		
+		public int getX() {
+			return index % width;
+		}
+		
+		public int getY() {
+			return index / width;
 		}
 		
 		private boolean placeBody(Body body, float offsetX, float offsetY) {
 			
-			if (!isEmpty() && this.body != body) 
-				return false;
-				
-			synchronized (positions) {
-				Cell c = positions.get(body);
-				
-				if (c != null) 
-					c.body = null;
-
-				positions.remove(body);
-				positions.put(body, this);
-				this.body = body;				
-			}
-
-			this.offsetX = offsetX;
-			
-			this.offsetY = offsetY;
+			return Field.this.placeBody(index, body, offsetX, offsetY);
 			
-			return true;
 		}
 		
 		public float getBodyOffsetX() {
-			return offsetX;
+			return offset(offsetsX, bodies[index]);
 		}
 
 		public float getBodyOffsetY() {
-			return offsetY;
+			return offset(offsetsY, bodies[index]);
+		}
+		
+		@Override
+		public boolean equals(Object obj) {
+			
+			if (!(obj instanceof Cell))
+				return false;
+			
+			return ((Cell) obj).index == index && ((Cell) obj).getField() == Field.this;
+			
+		}
+		
+		@Override
+		public int hashCode() {
+			return index;
+		}
+		
+		private Field getField() {
+			return Field.this;
 		}
 		
 		@Override
 		public String toString() {
-			return String.format("Cell [%d, %d]", position.getX(), position.getY());
+			return String.format("Cell [%d, %d]", index % width, index / width);
 		}
 		
 	}
 	
-	private Hashtable<Body, Cell> positions = new Hashtable<Body, Cell>();
+	private static final Wall[] WALLS = new Wall[9];
+	
+	static {
+		for (int i = 0; i < WALLS.length; i++)
+			WALLS[i] = new Wall(Arena.TILE_WALL_0 + i);
+	}
 	
-	private Cell[] cells; 
+	// the base tile of every cell
+	private byte[] tiles;
+	
+	// the content of every cell: 0 if empty, the slot of the body + 1 or 
+	// -1 - the variant of the wall
+	private int[] bodies;
+	
+	// the bodies on the field with their cell and offsets, indexed by slot
+	private Body[] table = new Body[64];
+	
+	private int[] locations = new int[64];
+	
+	private float[] offsetsX = new float[64], offsetsY = new float[64];
+	
+	private int[] free = new int[64];
+	
+	private int used = 0, released = 0;
+	
+	// chunks of cells that changed since the last snapshot, see FieldSnapshot
+	private boolean[] changed;
 	
 	private int width, height;
 	
@@ -334,19 +369,13 @@ public class Field implements Arena {
 		
 		this.width = width;
 		this.height = height;
-		cells = new Cell[width * height];
+		tiles = new byte[width * height];
+		bodies = new int[width * height];
+		changed = new boolean[FieldSnapshot.columns(width) * FieldSnapshot.rows(height)];
+		Arrays.fill(changed, true);
 		
-		int n = 0;
-		
-		for (int j = 0; j < height; j++) {
-			for (int i = 0; i < width; i++) {
-				
-				int grass = ((int) (Math.random() * 10)) % 9;
-				
-				cells[n++] = new Cell(new Position(i, j), grass);
-				
-			}
-		}
+		for (int n = 0; n < tiles.length; n++)
+			tiles[n] = (byte) (((int) (Math.random() * 10)) % 9);
 		
 	}
 	
@@ -374,9 +403,9 @@ public class Field implements Arena {
 		
 		for (Position p : walls) {
 			
-			int wall = Arena.TILE_WALL_0 + ((int) (Math.random() * 10)) % 9;
+			int wall = ((int) (Math.random() * 10)) % 9;
 			
-			arena.getCell(p.getX(), p.getY()).body = new Wall(wall);
+			arena.bodies[p.getY() * arena.width + p.getX()] = -1 - wall;
 			
 		}
 		
@@ -525,15 +554,114 @@ public class Field implements Arena {
 		if (x < 0 || x >= width || y < 0 || y >= height)
 			return null;
 		
-		return cells[y * width + x]; 
+		return new Cell(y * width + x); 
 		
 	}
 
+	/**
+	 * Returns the cell that contains the body without allocating a position.
+	 * 
+	 * @param body the body
+	 * @return the cell or <tt>null</tt> if the body is not on the field
+	 */
+	public Cell getBodyCell(Body body) {
+		
+		int slot = body.slot;
+		
+		return slot < 0 ? null : new Cell(locations[slot]);
+		
+	}
+	
+	/**
+	 * Returns the body in a cell without creating a view of the cell.
+	 * 
+	 * @return the body or <tt>null</tt> if the cell is empty or outside of the field
+	 */
+	public Body getBody(int x, int y) {
+		
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return null;
+		
+		return body(bodies[y * width + x]);
+		
+	}
+	
+	/**
+	 * Returns the x coordinate of the cell of a body.
+	 * 
+	 * @return the coordinate or -1 if the body is not on the field
+	 */
+	public int getBodyX(Body body) {
+		
+		int slot = body.slot;
+		
+		return slot < 0 ? -1 : locations[slot] % width;
+		
+	}
+	
+	/**
+	 * Returns the y coordinate of the cell of a body.
+	 * 
+	 * @return the coordinate or -1 if the body is not on the field
+	 */
+	public int getBodyY(Body body) {
+		
+		int slot = body.slot;
+		
+		return slot < 0 ? -1 : locations[slot] / width;
+		
+	}
+	
+	public float getBodyOffsetX(Body body) {
+		
+		int slot = body.slot;
+		
+		return slot < 0 ? 0 : offsetsX[slot];
+		
+	}
+	
+	public float getBodyOffsetY(Body body) {
+		
+		int slot = body.slot;
+		
+		return slot < 0 ? 0 : offsetsY[slot];
+		
+	}
+	
+	/**
+	 * Copies the position of a body to the given object.
+	 * 
+	 * @param body the body
+	 * @param result the position that is overwritten
+	 * @return <tt>false</tt> if the body is not on the field
+	 */
+	public boolean getPosition(Body body, BodyPosition result) {
+		
+		int slot = body.slot;
+		
+		if (slot < 0)
+			return false;
+		
+		int index = locations[slot];
+		
+		result.setX(index % width);
+		result.setY(index / width);
+		result.offsetX = offsetsX[slot];
+		result.offsetY = offsetsY[slot];
+		
+		return true;
+	}
+	
 	public BodyPosition getPosition(Body body) {
 		
-		Cell cell = positions.get(body);
+		int slot = body.slot;
+		
+		if (slot < 0)
+			return null;
 		
-		return cell == null ? null : new BodyPosition(cell.position, cell.offsetX, cell.offsetY);
+		int index = locations[slot];
+		
+		return new BodyPosition(index % width, index / width, offsetsX[slot], offsetsY[slot]);
 	}
 	
 	public Collection<Cell> getNeighborhood(int x, int y) {
@@ -563,6 +691,151 @@ public class Field implements Arena {
 		return new CellIterator(x, y);
 	}
 	
+	private Body body(int code) {
+		
+		if (code == 0)
+			return null;
+		
+		if (code < 0)
+			return WALLS[-1 - code];
+		
+		// the table may be replaced by a larger one while other threads read it
+		Body[] table = this.table;
+		
+		return code <= table.length ? table[code - 1] : null;
+		
+	}
+	
+	private float offset(float[] offsets, int code) {
+		
+		return code > 0 && code <= offsets.length ? offsets[code - 1] : 0;
+		
+	}
+	
+	/**
+	 * Moves a body to a cell, the previous cell of the body is cleared. The
+	 * bodies are only added to the table by one thread at a time, bodies that
+	 * are already on the field can be moved by several threads if they do
+	 * not touch the same cells.
+	 */
+	private boolean placeBody(int index, Body body, float offsetX, float offsetY) {
+		
+		int code = bodies[index];
+		
+		if (code != 0 && body(code) != body)
+			return false;
+		
+		int slot = body.slot;
+		
+		if (slot < 0) {
+			
+			slot = allocate(body);
+			
+		} else {
+			
+			int previous = locations[slot];
+			
+			if (previous != index) {
+				bodies[previous] = 0;
+				markChanged(previous);
+			}
+		}
+		
+		locations[slot] = index;
+		offsetsX[slot] = offsetX;
+		offsetsY[slot] = offsetY;
+		bodies[index] = slot + 1;
+		
+		markChanged(index);
+		
+		return true;
+	}
+	
+	private synchronized int allocate(Body body) {
+		
+		int slot;
+		
+		if (released > 0) {
+			slot = free[--released];
+		} else {
+			
+			if (used == table.length) {
+				table = Arrays.copyOf(table, used * 2);
+				locations = Arrays.copyOf(locations, used * 2);
+				offsetsX = Arrays.copyOf(offsetsX, used * 2);
+				offsetsY = Arrays.copyOf(offsetsY, used * 2);
+			}
+			
+			slot = used++;
+		}
+		
+		table[slot] = body;
+		body.slot = slot;
+		
+		return slot;
+		
+	}
+	
+	private synchronized void release(int slot) {
+		
+		table[slot].slot = -1;
+		table[slot] = null;
+		
+		if (released == free.length)
+			free = Arrays.copyOf(free, released * 2);
+		
+		free[released++] = slot;
+		
+	}
+	
+	private void markChanged(int index) {
+		
+		changed[((index / width) >> FieldSnapshot.BITS) * FieldSnapshot.columns(width)
+				+ ((index % width) >> FieldSnapshot.BITS)] = true;
+		
+	}
+	
+	boolean[] getChangedChunks() {
+		return changed;
+	}
+	
+	/**
+	 * Returns the number of slots that are in use or were released, every
+	 * body on the field has a slot below this number.
+	 */
+	int getSlotCount() {
+		return used;
+	}
+	
+	/**
+	 * Returns the body that occupies a slot.
+	 * 
+	 * @param slot the slot
+	 * @return the body or <tt>null</tt> if the slot is free
+	 */
+	Body getSlotBody(int slot) {
+		return table[slot];
+	}
+	
+	/**
+	 * Returns the slot of a body.
+	 * 
+	 * @param body the body
+	 * @return the slot or -1 if the body is not on a field
+	 */
+	static int getSlot(Body body) {
+		return body.slot;
+	}
+	
+	boolean hasChangedChunks() {
+		
+		for (boolean c : changed)
+			if (c)
+				return true;
+		
+		return false;
+	}
+	
 	public boolean putBody(Body body, BodyPosition position) {
 		
 		Cell cell = getCell(position.getX(), position.getY());
@@ -574,6 +847,20 @@ public class Field implements Arena {
 		
 	}
 	
+	/**
+	 * Places a body on the given cell, the same as 
+	 * {@link #putBody(Body, BodyPosition)} without a position object. The 
+	 * offsets must already be normalized.
+	 */
+	public boolean putBody(Body body, int x, int y, float offsetX, float offsetY) {
+		
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return false;
+		
+		return placeBody(y * width + x, body, offsetX, offsetY);
+		
+	}
+	
 	public boolean putBodyCloseTo(Body body, Position position) {
 		
 		Cell cell = getCell(position.getX(), position.getY());
@@ -599,67 +886,69 @@ public class Field implements Arena {
 	
 	public void removeBody(Body body) {
 		
-		BodyPosition bp = getPosition(body);
+		int slot = body.slot;
 		
-		if (bp == null)
+		if (slot < 0)
 			return;
 		
-		Cell cell = getCell(bp.getX(), bp.getY());
+		int index = locations[slot];
 		
-		if (cell == null)
-			return;
+		bodies[index] = 0;
 		
-		synchronized (positions) {
-			cell.body = null;
-			positions.remove(body);			
-		}
+		release(slot);
+		
+		markChanged(index);
 
 	}
 
 	@Override
 	public int getBodyTile(int x, int y) {
 
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null)
-			return c.getBody().getTile();
-
-		return 0;
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return 0;
+		
+		Body body = body(bodies[y * width + x]);
+		
+		return body == null ? 0 : body.getTile();
 	}
 
 	@Override
 	public float getBodyOffsetX(int x, int y) {
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null)
-			return c.getBodyOffsetX();
-
-		return 0;
+		
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return 0;
+		
+		return offset(offsetsX, bodies[y * width + x]);
 	}
 
 	@Override
 	public float getBodyOffsetY(int x, int y) {
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null)
-			return c.getBodyOffsetY();
-
-		return 0;
+		
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return 0;
+		
+		return offset(offsetsY, bodies[y * width + x]);
 	}
 
 	@Override
 	public int getBaseTile(int x, int y) {
 
-		Cell c = getCell(x, y);
-		if (c != null)
-			return c.getTile();
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return 0;
 
-		return 0;
+		return tiles[y * width + x];
 	}
 
 	@Override
 	public Color getBodyColor(int x, int y) {
-		Cell c = getCell(x, y);
-		if (c != null && c.getBody() != null
-				&& (c.getBody() instanceof TeamBody))
-			return ((TeamBody) c.getBody()).getTeam().getColor();
+		
+		if (x < 0 || x >= width || y < 0 || y >= height)
+			return null;
+		
+		Body body = body(bodies[y * width + x]);
+		
+		if (body instanceof TeamBody)
+			return ((TeamBody) body).getTeam().getColor();
 
 		return null;
 	}
@@ -672,9 +961,7 @@ public class Field implements Arena {
 		
 			for (int i = 0; i < width; i++) {
 				
-				Cell c = cells[j * width + i];
-				
-				if (!c.isEmpty()) continue;
+				if (bodies[j * width + i] != 0) continue;
 				
 				if (emptyNeighborhood) {
 					
@@ -691,7 +978,7 @@ public class Field implements Arena {
 						
 				}
 				
-				list.add(c);
+				list.add(new Cell(j * width + i));
 				
 			}
 			
@@ -0,0 +1,424 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.grid.protocol.Neighborhood;
+import org.grid.protocol.Message.Direction;
+import org.grid.server.Field.Body;
+import org.grid.server.Field.Wall;
+import org.grid.server.Team.Flag;
+import org.grid.server.Team.Headquarters;
+import org.grid.server.Team.TeamBody;
+
+/**
+ * An immutable copy of the occupancy of the field and of the agents, taken by
+ * the game thread once per step. Scans are answered from the last published
+ * snapshot by any thread without locking, and every scan sees the field as it
+ * was at the end of the same step.
+ *
+ * The cells are stored in square chunks. A new snapshot shares the chunks
+ * without changes with the previous one and only copies the chunks that the
+ * field marked as changed, so the cost of a snapshot depends on the number of
+ * moving bodies and not on the size of the field.
+ *
+ * Every chunk holds the cells as seen by each team, encoded with the codes of
+ * {@link Neighborhood}, and a short list of the agents in it. A scan copies
+ * the rows of these codes and fills in the ids of the teammates from the list.
+ *
+ * The agents are stored by their slot on the field, with the position, the
+ * direction and the flag packed into one number. These tables are reused by
+ * every second snapshot, so a reader that holds an older snapshot can find its
+ * table overwritten and has to take the current snapshot instead.
+ */
+public class FieldSnapshot {
+
+	static final int BITS = 4;
+
+	private static final int CHUNK = 1 << BITS, MASK = CHUNK - 1, MASK_CELL = CHUNK * CHUNK - 1;
+
+	private static final int[] NO_AGENTS = new int[0];
+
+	private static class Chunk {
+
+		// neighborhood codes of the cells for every team, teammates are empty
+		private final byte[][] codes;
+
+		// the agents ordered by cell, the index of the team is stored above
+		// the cell, and their ids
+		private int[] agents = NO_AGENTS, ids = NO_AGENTS;
+
+		private Chunk(int teams) {
+			codes = new byte[teams][CHUNK * CHUNK];
+		}
+
+	}
+
+	/**
+	 * The state of the agents, indexed by their slot on the field.
+	 */
+	private static class AgentTable {
+
+		private final AtomicReferenceArray<Agent> owners;
+
+		private final AtomicLongArray states;
+
+		// the serial of the snapshot that uses the table
+		private volatile int serial;
+
+		private AgentTable(int capacity) {
+			owners = new AtomicReferenceArray<Agent>(capacity);
+			states = new AtomicLongArray(capacity);
+		}
+
+	}
+
+	/**
+	 * The result of {@link #getAgent(Agent)} if the agent was not on the field.
+	 */
+	public static final long NONE = -1;
+
+	/**
+	 * The result of {@link #getAgent(Agent)} if the snapshot is too old to be read.
+	 */
+	public static final long STALE = -2;
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private final int step, width, height, columns, serial;
+
+	private final Chunk[] chunks;
+
+	private final Team[] teams;
+
+	private final AgentTable agents;
+
+	// the table of the previous snapshot, reused by the next one
+	private final AgentTable spare;
+
+	private FieldSnapshot(int step, int width, int height, Chunk[] chunks, Team[] teams,
+			int serial, AgentTable agents, AgentTable spare) {
+
+		this.step = step;
+		this.width = width;
+		this.height = height;
+		this.columns = columns(width);
+		this.chunks = chunks;
+		this.teams = teams;
+		this.serial = serial;
+		this.agents = agents;
+		this.spare = spare;
+
+	}
+
+	static int columns(int width) {
+		return (width + MASK) >> BITS;
+	}
+
+	static int rows(int height) {
+		return (height + MASK) >> BITS;
+	}
+
+	/**
+	 * Takes a snapshot of the field. Must be called by the thread that
+	 * modifies the field, the changes of the field are cleared.
+	 *
+	 * @param previous the previous snapshot of the same field or <tt>null</tt>
+	 * @param field the field
+	 * @param teams the teams whose agents are included
+	 * @param step the current step
+	 * @return the new snapshot
+	 */
+	static FieldSnapshot capture(FieldSnapshot previous, Field field, Collection<Team> teams, int step) {
+
+		boolean[] changed = field.getChangedChunks();
+
+		// the codes of the chunks depend on the order of the teams
+		boolean reuse = previous != null && sameOrder(previous.teams, teams);
+
+		Team[] order = reuse ? previous.teams : teams.toArray(new Team[teams.size()]);
+
+		Chunk[] chunks = reuse ? previous.chunks.clone() : new Chunk[changed.length];
+
+		int slots = field.getSlotCount();
+
+		AgentTable table = previous == null ? null : previous.spare;
+
+		if (table == null || table.states.length() < slots)
+			table = new AgentTable(Math.max(64, slots * 2));
+
+		int serial = previous == null ? 1 : previous.serial + 1;
+
+		// readers of the snapshot that used the table before have to see this first
+		table.serial = serial;
+
+		FieldSnapshot snapshot = new FieldSnapshot(step, field.getWidth(), field.getHeight(), chunks, order,
+				serial, table, previous == null ? null : previous.agents);
+
+		int[] agents = null, ids = null;
+
+		for (int i = 0; i < chunks.length; i++) {
+
+			if (chunks[i] != null && !changed[i])
+				continue;
+
+			if (agents == null) {
+				agents = new int[CHUNK * CHUNK];
+				ids = new int[CHUNK * CHUNK];
+			}
+
+			chunks[i] = snapshot.copy(field, i, agents, ids);
+
+		}
+
+		Arrays.fill(changed, false);
+
+		for (int i = 0; i < slots; i++) {
+
+			Body body = field.getSlotBody(i);
+
+			if (!(body instanceof Agent) || snapshot.indexOf(((Agent) body).getTeam()) < 0) {
+				if (table.owners.get(i) != null)
+					table.owners.set(i, null);
+				continue;
+			}
+
+			Agent agent = (Agent) body;
+
+			table.states.set(i, pack(field.getBodyX(agent), field.getBodyY(agent), agent.getDirection(),
+					agent.hasFlag()));
+			table.owners.set(i, agent);
+
+		}
+
+		return snapshot;
+
+	}
+
+	private static boolean sameOrder(Team[] order, Collection<Team> teams) {
+
+		if (order.length != teams.size())
+			return false;
+
+		int i = 0;
+
+		for (Team t : teams)
+			if (order[i++] != t)
+				return false;
+
+		return true;
+
+	}
+
+	private static long pack(int x, int y, Direction direction, boolean flag) {
+
+		int d = direction == null ? Direction.NONE.ordinal() : direction.ordinal();
+
+		return ((long) x << 32) | ((long) y << 4) | (d << 1) | (flag ? 1 : 0);
+
+	}
+
+	private int indexOf(Team team) {
+
+		for (int t = 0; t < teams.length; t++)
+			if (teams[t] == team)
+				return t;
+
+		return -1;
+
+	}
+
+	private Chunk copy(Field field, int index, int[] agents, int[] ids) {
+
+		Chunk chunk = new Chunk(teams.length);
+
+		int count = 0;
+
+		int left = (index % columns) << BITS, top = (index / columns) << BITS;
+
+		for (int j = 0; j < CHUNK; j++) {
+			for (int i = 0; i < CHUNK; i++) {
+
+				int x = left + i, y = top + j;
+
+				int k = (j << BITS) | i;
+
+				Body body = field.getBody(x, y);
+
+				if (x >= field.getWidth() || y >= field.getHeight() || body instanceof Wall) {
+					encode(chunk, k, -1, Neighborhood.WALL, Neighborhood.WALL);
+					continue;
+				}
+
+				if (!(body instanceof TeamBody))
+					continue;
+
+				int t = indexOf(((TeamBody) body).getTeam());
+
+				if (body instanceof Headquarters) {
+					encode(chunk, k, t, Neighborhood.HEADQUARTERS, Neighborhood.OTHER_HEADQUARTERS);
+				} else if (body instanceof Flag) {
+					encode(chunk, k, t, Neighborhood.FLAG, Neighborhood.OTHER_FLAG);
+				} else if (body instanceof Agent) {
+					encode(chunk, k, t, Neighborhood.EMPTY, Neighborhood.OTHER);
+
+					if (t >= 0) {
+						agents[count] = (t << (2 * BITS)) | k;
+						ids[count++] = ((Agent) body).getId();
+					}
+				}
+
+			}
+		}
+
+		if (count > 0) {
+			chunk.agents = Arrays.copyOf(agents, count);
+			chunk.ids = Arrays.copyOf(ids, count);
+		}
+
+		return chunk;
+
+	}
+
+	private void encode(Chunk chunk, int k, int member, int own, int other) {
+
+		for (int t = 0; t < teams.length; t++)
+			chunk.codes[t][k] = (byte) (t == member ? own : other);
+
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	/**
+	 * Returns the state of an agent, packed into one number that is read with
+	 * {@link #getX(long)}, {@link #getY(long)}, {@link #getDirection(long)} and
+	 * {@link #hasFlag(long)}.
+	 *
+	 * @param agent the agent
+	 * @return the state, {@link #NONE} if the agent was not on the field or
+	 *         {@link #STALE} if a newer snapshot has to be used
+	 */
+	public long getAgent(Agent agent) {
+
+		int slot = Field.getSlot(agent);
+
+		if (slot < 0 || slot >= agents.states.length())
+			return NONE;
+
+		long state = agents.states.get(slot);
+
+		Agent owner = agents.owners.get(slot);
+
+		if (agents.serial != serial)
+			return STALE;
+
+		return owner == agent ? state : NONE;
+
+	}
+
+	public static int getX(long state) {
+		return (int) (state >>> 32);
+	}
+
+	public static int getY(long state) {
+		return (int) (state >>> 4) & 0xFFFFFFF;
+	}
+
+	public static Direction getDirection(long state) {
+		return DIRECTIONS[(int) (state >>> 1) & 7];
+	}
+
+	public static boolean hasFlag(long state) {
+		return (state & 1) != 0;
+	}
+
+	/**
+	 * Scans the neighborhood around the given position as seen by a team, as
+	 * the field was at the time of the snapshot.
+	 *
+	 * @param size the size of the neighborhood
+	 * @param team the team of the agent that performs the scan
+	 * @param x the x coordinate of the center
+	 * @param y the y coordinate of the center
+	 * @return the neighborhood or <tt>null</tt> if the team was not included
+	 *         in the snapshot
+	 */
+	public Neighborhood scan(int size, Team team, int x, int y) {
+
+		int t = indexOf(team);
+
+		if (t < 0)
+			return null;
+
+		Neighborhood n = new Neighborhood(size);
+
+		int left = x - size, right = x + size + 1;
+
+		for (int j = -size; j <= size; j++) {
+
+			int cy = y + j;
+
+			if (cy < 0 || cy >= height) {
+				n.fillCells(-size, j, 2 * size + 1, Neighborhood.WALL);
+				continue;
+			}
+
+			if (left < 0)
+				n.fillCells(-size, j, Math.min(right, 0) - left, Neighborhood.WALL);
+
+			if (right > width)
+				n.fillCells(Math.max(left, width) - x, j, right - Math.max(left, width), Neighborhood.WALL);
+
+			int end = Math.min(right, width);
+
+			// copy the row chunk by chunk
+			for (int cx = Math.max(left, 0); cx < end;) {
+
+				Chunk c = chunks[(cy >> BITS) * columns + (cx >> BITS)];
+
+				int k = ((cy & MASK) << BITS) | (cx & MASK);
+
+				int length = Math.min(end, (cx | MASK) + 1) - cx;
+
+				n.setCells(cx - x, j, c.codes[t], k, length);
+
+				for (int a = 0; a < c.agents.length; a++) {
+
+					int cell = c.agents[a] & MASK_CELL;
+
+					if (c.agents[a] >> (2 * BITS) == t && cell >= k && cell < k + length)
+						n.setCell(cx - x + cell - k, j, c.ids[a]);
+
+				}
+
+				cx += length;
+
+			}
+		}
+
+		return n;
+
+	}
+
+}
@@ -0,0 +1,215 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Moves the agents of all teams by splitting the field into square tiles.
+ *
+ * The moves are planned in parallel in chunks of agents. A move that starts
+ * and ends in the same tile only touches the cells of that tile, so the tiles
+ * commit such moves in parallel, each in the order of teams and agents. Moves
+ * that cross the edge of a tile are committed afterwards by the calling thread
+ * in the same order. The outcome does not depend on the scheduling of the
+ * threads, but agents that meet in the same cell may be resolved in a
+ * different order than in the sequential step.
+ */
+class FieldTiles {
+
+	private static final int CHUNK = 256;
+
+	private Field field;
+
+	private ForkJoinPool pool;
+
+	private int size, columns, rows;
+
+	/**
+	 * Creates the tiling of the field.
+	 *
+	 * @param field the field
+	 * @param size the width and height of a tile in cells
+	 * @param pool the pool that runs the tiles
+	 */
+	public FieldTiles(Field field, int size, ForkJoinPool pool) {
+
+		this.field = field;
+		this.pool = pool;
+		this.size = Math.max(1, size);
+
+		columns = (field.getWidth() + this.size - 1) / this.size;
+		rows = (field.getHeight() + this.size - 1) / this.size;
+
+	}
+
+	public int getTileCount() {
+		return columns * rows;
+	}
+
+	/**
+	 * Moves all agents of the given teams.
+	 *
+	 * @param teams the teams in the order of the sequential step
+	 * @return the agents that have moved, one list per team
+	 */
+	public List<List<Agent>> move(Collection<Team> teams) {
+
+		Vector<List<Agent>> agents = new Vector<List<Agent>>();
+
+		int count = 0;
+
+		for (Team t : teams) {
+			List<Agent> a = t.getAgents();
+			agents.add(a);
+			count += a.size();
+		}
+
+		final Agent[] flat = new Agent[count];
+
+		int index = 0;
+
+		for (List<Agent> a : agents)
+			for (Agent agent : a)
+				flat[index++] = agent;
+
+		final Agent.Move[] moves = new Agent.Move[count];
+
+		final boolean[] moved = new boolean[count];
+
+		// plan all moves
+		Vector<Callable<Void>> tasks = new Vector<Callable<Void>>();
+
+		for (int i = 0; i < count; i += CHUNK) {
+			final int from = i, to = Math.min(count, i + CHUNK);
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int j = from; j < to; j++)
+						moves[j] = flat[j].plan(field);
+					return null;
+				}
+			});
+		}
+
+		if (!invoke(tasks))
+			return null;
+
+		// sort moves into tiles, keeping the order of agents
+		Vector<Integer> boundary = new Vector<Integer>();
+
+		ArrayList<Vector<Integer>> tiles = new ArrayList<Vector<Integer>>(getTileCount());
+
+		for (int i = 0; i < getTileCount(); i++)
+			tiles.add(null);
+
+		for (int i = 0; i < count; i++) {
+
+			Agent.Move m = moves[i];
+
+			if (m == null)
+				continue;
+
+			int tile = tile(m.getOriginX(), m.getOriginY());
+
+			if (tile < 0 || tile != tile(m.getTargetX(), m.getTargetY())) {
+				boundary.add(i);
+				continue;
+			}
+
+			if (tiles.get(tile) == null)
+				tiles.set(tile, new Vector<Integer>());
+
+			tiles.get(tile).add(i);
+		}
+
+		// commit the moves inside of tiles
+		tasks.clear();
+
+		for (final Vector<Integer> tile : tiles) {
+
+			if (tile == null)
+				continue;
+
+			tasks.add(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					for (int i : tile)
+						moved[i] = flat[i].commit(field, moves[i]);
+					return null;
+				}
+			});
+		}
+
+		// the moves are partially committed, an error can not be undone here
+		invoke(tasks);
+
+		// commit the moves across tiles
+		for (int i : boundary)
+			moved[i] = flat[i].commit(field, moves[i]);
+
+		Vector<List<Agent>> result = new Vector<List<Agent>>();
+
+		index = 0;
+
+		for (List<Agent> a : agents) {
+
+			Vector<Agent> m = new Vector<Agent>();
+
+			for (int i = 0; i < a.size(); i++, index++)
+				if (moved[index])
+					m.add(flat[index]);
+
+			result.add(m);
+		}
+
+		return result;
+	}
+
+	private int tile(int x, int y) {
+
+		if (x < 0 || y < 0 || x >= field.getWidth() || y >= field.getHeight())
+			return -1;
+
+		return (y / size) * columns + (x / size);
+	}
+
+	private boolean invoke(Collection<Callable<Void>> tasks) {
+
+		try {
+			for (Future<Void> f : pool.invokeAll(tasks))
+				f.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		return true;
+	}
+
+}
@@ -21,22 +21,25 @@ import java.awt.Color;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Properties;
 import java.util.Vector;
-
-import org.grid.protocol.Neighborhood;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.grid.protocol.BufferPool;
 import org.grid.protocol.Message.Direction;
 import org.grid.server.Dispatcher.Client;
-import org.grid.server.Field.BodyPosition;
 import org.grid.server.Field.Cell;
-import org.grid.server.Field.Wall;
 import org.grid.server.Team.Flag;
-import org.grid.server.Team.Headquarters;
-import org.grid.server.Team.TeamBody;
 
 
 public class Game {
@@ -55,11 +58,11 @@ public class Game {
 		
 		private int to;
 		
-		private byte[] message;
+		private ByteBuffer message;
 
 		private int delay;
 		
-		public MessageContainter(int to, byte[] message, int delay) {
+		public MessageContainter(int to, ByteBuffer message, int delay) {
 			super();
 			this.to = to;
 			this.message = message;
@@ -70,7 +73,7 @@ public class Game {
 			return to;
 		}
 
-		public byte[] getMessage() {
+		public ByteBuffer getMessage() {
 			return message;
 		}
 
@@ -78,6 +81,10 @@ public class Game {
 			return delay--;
 		}
 		
+		public int getDelay() {
+			return delay;
+		}
+		
 	}
 	
 	private FlagMode flagMode;
@@ -100,7 +107,22 @@ public class Game {
 	
 	private int messageSpeed = 10;
 	
+	private int messageLimit = 16;
+	
 	private Properties properties = null;
+	
+	private ForkJoinPool planner = null;
+	
+	private FieldTiles tiles = null;
+	
+	private StepProfiler profiler = new StepProfiler();
+	
+	private PositionBatch batch = new PositionBatch();
+	
+	// agents with a move that is applied in the next step
+	private ConcurrentLinkedQueue<Agent> commands = new ConcurrentLinkedQueue<Agent>();
+	
+	private ConcurrentLinkedQueue<Envelope> messages = new ConcurrentLinkedQueue<Envelope>();
 
 	private File gameSource;
 
@@ -124,11 +146,8 @@ public class Game {
 		if (a1 == null || a2 == null)
 			return -1;
 
-		BodyPosition bp1 = field.getPosition(a1);
-		BodyPosition bp2 = field.getPosition(a2);
-
-		return Math.max(Math.abs(bp1.getX() - bp2.getX()), Math.abs(bp1.getY()
-				- bp2.getY()));
+		return Math.max(Math.abs(field.getBodyX(a1) - field.getBodyX(a2)), 
+				Math.abs(field.getBodyY(a1) - field.getBodyY(a2)));
 	}
 
 	private Game() throws IOException {
@@ -224,6 +243,18 @@ public class Game {
 
 		game.messageSpeed = game.getProperty("message.speed", 10);
 		
+		game.messageLimit = Math.max(1, game.getProperty("message.limit", 16));
+		
+		int parallel = game.getProperty("gameplay.parallel", 0);
+		
+		int tileSize = game.getProperty("gameplay.tiles", 0);
+		
+		if (parallel <= 0 && tileSize > 0)
+			parallel = Runtime.getRuntime().availableProcessors();
+		
+		if (parallel > 0)
+			game.planner = new ForkJoinPool(parallel);
+		
 		if (game.flagMode == FlagMode.RESPAWN) {
 
 			game.flagSpawnFrequency = game.getProperty(
@@ -241,12 +272,36 @@ public class Game {
 
 		game.flagWeight = Math.min(30, Math.max(0, game.getProperty("gameplay.flags.weight", 1f)));
 		
+		if (game.getProperty("gameplay.lockstep", false)) {
+			game.lockstep = new Lockstep(game.getProperty("gameplay.lockstep.timeout", 1000 / Math.max(1, game.getSpeed())));
+		}
+		
+		String checkpoint = game.getProperty("checkpoint.file", null);
+		
+		if (checkpoint != null) {
+			game.checkpointFile = new File(checkpoint);
+			if (!game.checkpointFile.isAbsolute())
+				game.checkpointFile = new File(f.getAbsoluteFile().getParentFile(), checkpoint);
+			game.checkpointInterval = game.getProperty("checkpoint.interval", 0);
+		}
+		
 		game.field = Field.loadFromFile(fldFile, game);
+		
+		if (tileSize > 0) {
+			game.tiles = new FieldTiles(game.field, tileSize, game.planner);
+			Main.log("Field split into %d tiles", game.tiles.getTileCount());
+		}
 
 		if (game.flagMode != FlagMode.UNIQUE) {
 			game.spawnNewFlags();
 		}
 		
+		if (game.checkpointFile != null && game.getProperty("checkpoint.restore", false)
+				&& game.checkpointFile.exists())
+			game.restore(game.checkpointFile);
+		
+		game.snapshot = FieldSnapshot.capture(null, game.field, game.teams.values(), game.step);
+		
 		return game;
 
 	}
@@ -262,72 +317,343 @@ public class Game {
 	private int flagSpawnCounter = 1;
 
 	private int step = 0;
+	
+	private File checkpointFile = null;
+	
+	private int checkpointInterval = 0;
+	
+	private final AtomicBoolean checkpointBusy = new AtomicBoolean(false);
+	
+	private Lockstep lockstep = null;
+	
+	private volatile FieldSnapshot snapshot;
 
 	public synchronized void step() {
 
 		step++;
 
+		profiler.begin();
+		
+		applyCommands();
+		
+		profiler.end(StepProfiler.Phase.COMMANDS);
+		
 		fireStepEvent();
 		
+		profiler.end(StepProfiler.Phase.EVENTS);
+		
+		List<List<Agent>> tiled = tiles == null ? null : tiles.move(teams.values());
+		
+		List<List<Agent.Move>> moves = tiled == null ? planMoves() : null;
+		
+		boolean batched = false, single = false;
+		
+		synchronized (listeners) {
+			for (GameListener l : listeners) {
+				if (l instanceof PositionBatchListener)
+					batched = true;
+				else
+					single = true;
+			}
+		}
+		
+		batch.clear();
+		
 		// handle moves and collisions
+		int index = 0;
 		for (Team t : teams.values()) {
-			for (Agent a : t.move(field)) {
+			List<Agent> moved;
+			
+			if (tiled != null)
+				moved = tiled.get(index++);
+			else if (moves != null)
+				moved = t.commit(field, moves.get(index++));
+			else
+				moved = t.move(field);
+			
+			for (Agent a : moved) {
+				
+				if (batched) {
+					int x = field.getBodyX(a);
+					if (x >= 0)
+						batch.add(t, a.getId(), x, field.getBodyY(a),
+								field.getBodyOffsetX(a), field.getBodyOffsetY(a));
+				}
+				
+				if (!single)
+					continue;
 				
 				synchronized (listeners) {
 					for (GameListener l : listeners) {
+						if (l instanceof PositionBatchListener)
+							continue;
+						long start = System.nanoTime();
 						try {
 							l.position(t, a.getId(), field.getPosition(a));
 						} catch (Exception e) {
 							e.printStackTrace();
 						}
-
+						profiler.listener(l, System.nanoTime() - start);
 					}
 				}
 				
 			}
 			
-			t.dispatch();
+			profiler.count(StepProfiler.Counter.AGENTS_MOVED, moved.size());
+		}
+		
+		// the moves are reported before the messages of the step are delivered
+		if (batched) {
+			synchronized (listeners) {
+				for (GameListener l : listeners) {
+					if (!(l instanceof PositionBatchListener))
+						continue;
+					long start = System.nanoTime();
+					try {
+						((PositionBatchListener) l).positions(batch);
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					profiler.listener(l, System.nanoTime() - start);
+				}
+			}
+		}
+		
+		profiler.end(StepProfiler.Phase.MOVE);
+		
+		for (Team t : teams.values())
+			profiler.count(StepProfiler.Counter.MESSAGES_DELIVERED, t.dispatch());
+		
+		profiler.end(StepProfiler.Phase.DISPATCH);
+		
+		// scans and states are answered from the snapshot until the next step
+		snapshot = FieldSnapshot.capture(snapshot, field, teams.values(), step);
+		
+		profiler.end(StepProfiler.Phase.SNAPSHOT);
+		
+		// push the new state to subscribed agents
+		for (Team t : teams.values()) {
+			t.pushStates(step);
 		}
+		
+		profiler.end(StepProfiler.Phase.PUSH);
 
+		// give restored agents to new clients
+		for (Team t : teams.values()) {
+			t.adoptAgents();
+		}
+		
 		// spawn new agents
 		spawnCounter--;
 		if (spawnCounter == 0) {
-			spawnNewAgents();
+			profiler.count(StepProfiler.Counter.AGENTS_SPAWNED, spawnNewAgents());
 			spawnCounter = spawnFrequency;
 		}
+		
+		profiler.end(StepProfiler.Phase.SPAWN_AGENTS);
 
 		if (flagMode == FlagMode.RESPAWN) {
 			// spawn new flags
 			flagSpawnCounter--;
 			if (flagSpawnCounter == 0) {
-				spawnNewFlags();
+				profiler.count(StepProfiler.Counter.FLAGS_SPAWNED, spawnNewFlags());
 				flagSpawnCounter = flagSpawnFrequency;
 			}
 		}
+		
+		profiler.end(StepProfiler.Phase.SPAWN_FLAGS);
 
 		// remove dead agents
 		for (Team t : teams.values()) {
 			t.cleanup(field);
 		}
+		
+		profiler.end(StepProfiler.Phase.CLEANUP);
+		
+		// spawned and removed bodies are visible to scans before the next step
+		if (field.hasChangedChunks())
+			snapshot = FieldSnapshot.capture(snapshot, field, teams.values(), step);
+		
+		profiler.end(StepProfiler.Phase.SNAPSHOT);
+		
+		profiler.finish();
+		
+		if (lockstep != null)
+			lockstep.begin(teams.values());
+		
+		if (checkpointInterval > 0 && step % checkpointInterval == 0)
+			checkpoint();
 
 		// check end conditions?
 		// TODO
 
 	}
 
-	private void spawnNewAgents() {
+	/**
+	 * Plans the moves of all teams on the planner pool. Planning does not change
+	 * the field, collisions, flag pickups and drops are resolved afterwards when
+	 * the moves are committed team by team in the same order as in the sequential
+	 * step, so the outcome is the same.
+	 * 
+	 * @return planned moves in the order of teams or <tt>null</tt> if the moves
+	 * are not planned in parallel
+	 */
+	private List<List<Agent.Move>> planMoves() {
+		
+		if (planner == null)
+			return null;
+		
+		Vector<Callable<List<Agent.Move>>> tasks = new Vector<Callable<List<Agent.Move>>>();
+		
+		for (final Team t : teams.values()) {
+			tasks.add(new Callable<List<Agent.Move>>() {
+				@Override
+				public List<Agent.Move> call() throws Exception {
+					return t.plan(field);
+				}
+			});
+		}
+		
+		Vector<List<Agent.Move>> moves = new Vector<List<Agent.Move>>();
+		
+		try {
+			for (Future<List<Agent.Move>> f : planner.invokeAll(tasks))
+				moves.add(f.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			e.printStackTrace();
+			return null;
+		}
+		
+		return moves;
+	}
+
+	/**
+	 * Returns the profiler that measures the phases of {@link #step()}.
+	 */
+	public StepProfiler getProfiler() {
+		return profiler;
+	}
 
+	/**
+	 * Captures the state of the game and writes it to the checkpoint file on
+	 * a separate thread. The capture only copies the values, the game is
+	 * stopped only for the time of the copy. If the previous checkpoint is
+	 * still being written the new one is skipped.
+	 */
+	private void checkpoint() {
+		
+		if (!checkpointBusy.compareAndSet(false, true)) {
+			Main.log("Checkpoint at step %d skipped, previous one is still being written", step);
+			return;
+		}
+		
+		long start = System.nanoTime();
+		
+		final Checkpoint checkpoint = capture();
+		
+		final long captured = System.nanoTime() - start;
+		
+		Thread writer = new Thread(new Runnable() {
+			
+			@Override
+			public void run() {
+				
+				long start = System.nanoTime();
+				
+				try {
+					checkpoint.save(checkpointFile);
+					Main.log("Checkpoint at step %d: captured in %d us, written in %d ms", checkpoint.step,
+							captured / 1000, (System.nanoTime() - start) / 1000000);
+				} catch (IOException e) {
+					Main.log("Unable to write checkpoint: %s", e.getMessage());
+				} finally {
+					checkpointBusy.set(false);
+				}
+				
+			}
+		}, "Checkpoint writer");
+		
+		writer.setDaemon(true);
+		writer.start();
+		
+	}
+	
+	/**
+	 * Copies the dynamic state of the game. The history and the listeners are
+	 * not included, the history grows with every step and could not be copied
+	 * without stopping the step for too long.
+	 * 
+	 * @return the copy of the state
+	 */
+	synchronized Checkpoint capture() {
+		
+		Checkpoint checkpoint = new Checkpoint();
+		
+		checkpoint.step = step;
+		checkpoint.spawnCounter = spawnCounter;
+		checkpoint.flagSpawnCounter = flagSpawnCounter;
+		
+		Vector<Checkpoint.TeamState> states = new Vector<Checkpoint.TeamState>();
+		
+		for (Team t : teams.values())
+			states.add(t.checkpoint(field));
+		
+		checkpoint.teams = states.toArray(new Checkpoint.TeamState[states.size()]);
+		
+		return checkpoint;
+		
+	}
+	
+	/**
+	 * Restores the state of the game from a checkpoint file. Should be called
+	 * before clients connect, the restored agents are given to the clients
+	 * that join their team. Teams that are not in the game are ignored.
+	 * 
+	 * @param file the checkpoint file
+	 * @throws IOException if the file can not be read
+	 */
+	public synchronized void restore(File file) throws IOException {
+		
+		Checkpoint checkpoint = Checkpoint.load(file);
+		
+		step = checkpoint.step;
+		spawnCounter = checkpoint.spawnCounter;
+		flagSpawnCounter = checkpoint.flagSpawnCounter;
+		
+		for (Checkpoint.TeamState state : checkpoint.teams) {
+			
+			Team team = teams.get(state.name);
+			
+			if (team == null) {
+				Main.log("Team %s from the checkpoint is not in the game", state.name);
+				continue;
+			}
+			
+			team.restore(state, field);
+			
+		}
+		
+		Main.log("Game restored from %s at step %d", file, step);
+		
+	}
+	
+	private int spawnNewAgents() {
+
+		int spawned = 0;
+		
 		for (Team t : teams.values()) {
 
 			if (t.size() < maxAgentsPerTeam) {
 
-				BodyPosition pos = field.getPosition(t.getHeadquarters());
+				int x = field.getBodyX(t.getHeadquarters());
 
-				if (pos == null)
+				if (x < 0)
 					continue;
 
-				Collection<Cell> cells = field.getNeighborhood(pos.getX(), pos
-						.getY());
+				Collection<Cell> cells = field.getNeighborhood(x, field.getBodyY(t.getHeadquarters()));
 
 				for (Cell c : cells) {
 
@@ -339,8 +665,10 @@ public class Game {
 					if (agt == null)
 						break;
 
-					field.putBody(agt, new BodyPosition(c.getPosition(), 0, 0));
+					field.putBody(agt, c.getX(), c.getY(), 0, 0);
 
+					spawned++;
+					
 					break;
 				}
 
@@ -348,9 +676,11 @@ public class Game {
 
 		}
 
+		return spawned;
+		
 	}
 
-	private void spawnNewFlags() {
+	private int spawnNewFlags() {
 
 		int add = 0;
 
@@ -361,12 +691,12 @@ public class Game {
 		}
 
 		if (add == 0)
-			return;
+			return 0;
 
 		List<Cell> freeCells = field.listEmptyFields(true);
 
 		if (freeCells.size() < add)
-			return;
+			return 0;
 
 		Vector<Flag> flags = new Vector<Flag>();
 
@@ -381,74 +711,11 @@ public class Game {
 		Collections.shuffle(freeCells);
 
 		for (int i = 0; i < flags.size(); i++) {
-			field.putBody(flags.get(i), new BodyPosition(freeCells.get(i)
-					.getPosition(), 0, 0));
+			field.putBody(flags.get(i), freeCells.get(i).getX(), freeCells.get(i).getY(), 0, 0);
 		}
 
-	}
-
-	public Neighborhood scanNeighborhood(int size, Agent agent) {
-
-		Neighborhood n = new Neighborhood(size);
-
-		BodyPosition bp = field.getPosition(agent);
-
-		if (bp == null)
-			return null;
-
-		for (int j = -size; j <= size; j++) {
-			for (int i = -size; i <= size; i++) {
-
-				Cell c = field.getCell(bp.getX() + i, bp.getY() + j);
-
-				if (c == null) {
-					n.setCell(i, j, Neighborhood.WALL);
-					continue;
-				}
-
-				if (c.isEmpty()) {
-					n.setCell(i, j, Neighborhood.EMPTY);
-					continue;
-				}
-
-				if (c.getBody() instanceof Wall) {
-					n.setCell(i, j, Neighborhood.WALL);
-					continue;
-				}
-
-				if (c.getBody() instanceof TeamBody) {
-
-					Team t = ((TeamBody) c.getBody()).getTeam();
-
-					if (c.getBody() instanceof Headquarters) {
-						n
-								.setCell(
-										i,
-										j,
-										t == agent.getTeam() ? Neighborhood.HEADQUARTERS
-												: Neighborhood.OTHER_HEADQUARTERS);
-						continue;
-					}
-
-					if (c.getBody() instanceof Flag) {
-						n.setCell(i, j,
-								t == agent.getTeam() ? Neighborhood.FLAG
-										: Neighborhood.OTHER_FLAG);
-						continue;
-					}
-
-					if (c.getBody() instanceof Agent) {
-
-						n.setCell(i, j, t == agent.getTeam() ? ((Agent) c
-								.getBody()).getId() : Neighborhood.OTHER);
-						continue;
-					}
-				}
-			}
-		}
-
-		return n;
-
+		return flags.size();
+		
 	}
 
 	public int getProperty(String key, int def) {
@@ -516,16 +783,94 @@ public class Game {
 		}
 	}
 
-	public synchronized void message(Team team, int from, int to, byte[] message) {
+	public void message(Team team, int from, int to, byte[] message) {
+		
+		message(team, from, to, ByteBuffer.wrap(message).asReadOnlyBuffer());
+		
+	}
+	
+	private static class Envelope {
+		
+		private Team team;
+		
+		private Agent sender;
+		
+		private int from, to;
+		
+		private ByteBuffer message;
+		
+		private Envelope(Team team, Agent sender, int from, int to, ByteBuffer message) {
+			this.team = team;
+			this.sender = sender;
+			this.from = from;
+			this.to = to;
+			this.message = message;
+		}
+		
+	}
+	
+	/**
+	 * Applies the moves and messages that were received since the last step.
+	 */
+	private void applyCommands() {
+		
+		Agent agent;
+		
+		while ((agent = commands.poll()) != null)
+			agent.applyCommand();
+		
+		Envelope envelope;
+		
+		while ((envelope = messages.poll()) != null) {
+			int rejected = envelope.sender.dequeueMessage();
+			if (rejected > 0)
+				Main.log("%d messages from %d rejected: too many messages", rejected, envelope.from);
+			deliver(envelope.team, envelope.from, envelope.to, envelope.message);
+		}
+		
+	}
+	
+	/**
+	 * Queues a message for delivery in the next step. The buffer is owned by
+	 * the game from now on and is released to the {@link BufferPool} once it
+	 * is delivered or rejected. Does not wait for the game. Messages of an
+	 * agent that already has <tt>message.limit</tt> messages waiting are
+	 * rejected.
+	 */
+	public void message(Team team, int from, int to, ByteBuffer message) {
+		
+		Client sender = team.findById(from);
+		
+		Agent agent = sender == null ? null : sender.getAgent();
+		
+		if (agent == null) {
+			BufferPool.release(message);
+			return;
+		}
+		
+		// rejected messages are logged once per step
+		if (!agent.queueMessage(messageLimit)) {
+			BufferPool.release(message);
+			return;
+		}
+		
+		messages.add(new Envelope(team, agent, from, to, message));
+		
+	}
+	
+	private void deliver(Team team, int from, int to, ByteBuffer message) {
 		Client cltto = team.findById(to);
 		Client cltfrom = team.findById(from);
 
 		if (from == to) {
 			Main.log("Message from %d to %d rejected: same agent",
 					from, to);
+			BufferPool.release(message);
 			return;
 		}
 
+		int length = message.remaining();
+		
 		if (cltto != null && cltfrom != null) {
 
 			int dst = distance(cltfrom.getAgent(), cltto.getAgent());
@@ -533,22 +878,26 @@ public class Game {
 				Main.log(
 						"Message from %d to %d rejected: too far away", from,
 						to);
+				BufferPool.release(message);
 				return;
 			}
 
-			cltfrom.getAgent().pushMessage(to, message, message.length / messageSpeed);
+			cltfrom.getAgent().pushMessage(to, message, length / messageSpeed);
 
-		} else
+		} else {
+			BufferPool.release(message);
 			return;
+		}
 
 		synchronized (listeners) {
 			for (GameListener l : listeners) {
+				long start = System.nanoTime();
 				try {
-					l.message(team, from, to, message.length);
+					l.message(team, from, to, length);
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
-
+				profiler.listener(l, System.nanoTime() - start);
 			}
 		}
 	}
@@ -557,27 +906,56 @@ public class Game {
 		
 		synchronized (listeners) {
 			for (GameListener l : listeners) {
+				long start = System.nanoTime();
 				try {
 					l.step();
 				} catch (Exception e) {
 					e.printStackTrace();
 				}
-
+				profiler.listener(l, System.nanoTime() - start);
 			}
 		}
 		
 	}
 	
-	public synchronized void move(Team team, int agent, Direction direction) {
+	/**
+	 * Stores a move that is applied at the beginning of the next step. Does
+	 * not wait for the game.
+	 */
+	public void move(Team team, int agent, Direction direction) {
 
 		Client clt = team.findById(agent);
 
 		if (clt != null && clt.getAgent() != null) {
-			clt.getAgent().setDirection(direction);
+			
+			if (clt.getAgent().command(direction))
+				commands.add(clt.getAgent());
+			
+			if (lockstep != null)
+				lockstep.committed(clt);
 		}
 
 	}
 
+	/**
+	 * Returns the snapshot of the field that was taken after the agents moved
+	 * in the last step.
+	 * 
+	 * @return the snapshot
+	 */
+	public FieldSnapshot getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Returns the lockstep scheduler of the game.
+	 * 
+	 * @return the scheduler or <tt>null</tt> if the game runs in real time
+	 */
+	public Lockstep getLockstep() {
+		return lockstep;
+	}
+
 	public int getSpeed() {
 		return getProperty("gameplay.speed", 10);
 	}
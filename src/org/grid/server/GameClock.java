@@ -0,0 +1,252 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Schedules the steps of the game at a fixed rate. The deadline of every step
+ * is computed from the start of the clock, so the period does not drift when
+ * the duration of steps varies. When a step takes longer than the period the
+ * clock follows one of the policies:
+ *
+ * <ul>
+ * <li>{@link Policy#CATCH_UP} - the late steps are run without waiting until
+ * the clock catches up, at most {@link #MAX_BEHIND} periods are made up</li>
+ * <li>{@link Policy#SKIP} - the missed deadlines are skipped, the next step is
+ * run at the next deadline of the original schedule that has not passed</li>
+ * <li>{@link Policy#STRETCH} - the schedule restarts after the late step</li>
+ * </ul>
+ *
+ * The clock counts overruns and keeps the recent lateness of the steps for
+ * jitter percentiles. Only one thread may wait on the clock, the statistics
+ * can be read from any thread.
+ */
+public class GameClock {
+
+	public static enum Policy {
+		CATCH_UP, SKIP, STRETCH
+	}
+
+	/**
+	 * The maximum number of periods that the clock makes up with the catch up
+	 * policy, the rest is skipped.
+	 */
+	public static final int MAX_BEHIND = 10;
+
+	private static final long SPIN = 500000;
+
+	private static final int SAMPLES = 1024;
+
+	private final long period;
+
+	private final Policy policy;
+
+	private long deadline, started;
+
+	private long steps, overruns, skipped;
+
+	private long[] lateness = new long[SAMPLES];
+
+	private int samples = 0, position = 0;
+
+	/**
+	 * Creates a clock.
+	 *
+	 * @param rate the number of steps per second
+	 * @param policy the policy for late steps
+	 */
+	public GameClock(float rate, Policy policy) {
+
+		this.period = (long) (1000000000L / Math.max(0.001f, rate));
+		this.policy = policy == null ? Policy.CATCH_UP : policy;
+
+		start();
+
+	}
+
+	/**
+	 * Parses the name of a policy as used in the game file.
+	 *
+	 * @param name the name, one of <tt>catchup</tt>, <tt>skip</tt> or <tt>stretch</tt>
+	 * @return the policy, {@link Policy#CATCH_UP} if the name is not known
+	 */
+	public static Policy parsePolicy(String name) {
+
+		if ("skip".equalsIgnoreCase(name))
+			return Policy.SKIP;
+
+		if ("stretch".equalsIgnoreCase(name))
+			return Policy.STRETCH;
+
+		return Policy.CATCH_UP;
+	}
+
+	/**
+	 * Restarts the schedule, the first deadline is one period from now.
+	 */
+	public synchronized void start() {
+
+		started = System.nanoTime();
+		deadline = started + period;
+		steps = 0;
+
+	}
+
+	/**
+	 * Waits for the deadline of the next step. The step is accounted as an
+	 * overrun if the deadline has already passed.
+	 *
+	 * @throws InterruptedException
+	 */
+	public void await() throws InterruptedException {
+
+		long target;
+
+		synchronized (this) {
+
+			long now = System.nanoTime();
+
+			if (now > deadline) {
+
+				long behind = (now - deadline) / period;
+
+				overruns++;
+
+				switch (policy) {
+				case CATCH_UP:
+					if (behind > MAX_BEHIND) {
+						skipped += behind - MAX_BEHIND;
+						deadline += (behind - MAX_BEHIND) * period;
+					}
+					break;
+				case SKIP:
+					skipped += behind + 1;
+					deadline += (behind + 1) * period;
+					break;
+				case STRETCH:
+					deadline = now;
+					break;
+				}
+			}
+
+			target = deadline;
+
+		}
+
+		// sleep most of the time, yield for the rest to hit the deadline
+		while (true) {
+
+			long remaining = target - System.nanoTime();
+
+			if (remaining <= 0)
+				break;
+
+			if (remaining > SPIN)
+				LockSupport.parkNanos(this, remaining - SPIN);
+			else
+				Thread.yield();
+
+			if (Thread.interrupted())
+				throw new InterruptedException();
+		}
+
+		synchronized (this) {
+
+			lateness[position] = System.nanoTime() - target;
+			position = (position + 1) % SAMPLES;
+			samples = Math.min(SAMPLES, samples + 1);
+
+			deadline += period;
+			steps++;
+
+		}
+
+	}
+
+	public long getPeriod() {
+		return period;
+	}
+
+	public Policy getPolicy() {
+		return policy;
+	}
+
+	/**
+	 * Returns the number of steps that were due before the previous step
+	 * finished.
+	 */
+	public synchronized long getOverruns() {
+		return overruns;
+	}
+
+	/**
+	 * Returns the number of steps that were dropped from the schedule.
+	 */
+	public synchronized long getSkipped() {
+		return skipped;
+	}
+
+	/**
+	 * Returns the actual number of steps per second since the clock was
+	 * started.
+	 */
+	public synchronized float getStepRate() {
+
+		long time = System.nanoTime() - started;
+
+		return time <= 0 ? 0 : (float) (steps * 1000000000.0 / time);
+
+	}
+
+	/**
+	 * Returns a percentile of the lateness of recent steps, that is the time
+	 * between the deadline and the moment the step was released.
+	 *
+	 * @param percentile the percentile between 0 and 100
+	 * @return the lateness in nanoseconds
+	 */
+	public long getJitter(float percentile) {
+
+		long[] sorted;
+
+		synchronized (this) {
+			sorted = Arrays.copyOf(lateness, samples);
+		}
+
+		if (sorted.length == 0)
+			return 0;
+
+		Arrays.sort(sorted);
+
+		int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+
+	}
+
+	@Override
+	public String toString() {
+
+		return String.format("%.1f steps/s, jitter p50 %.2f ms, p99 %.2f ms, %d overruns, %d skipped",
+				getStepRate(), getJitter(50) / 1000000f, getJitter(99) / 1000000f, getOverruns(), getSkipped());
+
+	}
+
+}
@@ -0,0 +1,256 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hosts several games in one process without the user interface. All games
+ * share one listening port, a client selects the game by sending its id in
+ * the register message (see the system property
+ * <tt>fri.pipt.protocol.game</tt> of the client). The id of a game is the name
+ * of its file without the extension, clients that do not send an id join the
+ * first game.
+ *
+ * The games are stepped by a shared pool of threads, the size of the pool is
+ * set with the system property <tt>fri.pipt.host.threads</tt> (default is the
+ * number of processors). Every game is configured with the <tt>headless.*</tt>
+ * properties of its game file, see {@link Headless}, except that
+ * <tt>headless.speed</tt> defaults to 1. Games in lockstep mode are stepped as
+ * soon as their clients have moved, see {@link Lockstep}. The process exits
+ * when all games are finished.
+ */
+public class GameHost {
+
+	private static final int PORT = 5000;
+
+	private static class HostedGame implements Runnable {
+
+		private String id;
+
+		private Game game;
+
+		private int steps, score, clients;
+
+		private boolean started = false, finished = false;
+
+		private long start;
+
+		private ScheduledFuture<?> future, timeout;
+
+		private Lockstep lockstep;
+
+		private Dispatcher dispatcher;
+
+		private ScheduledThreadPoolExecutor scheduler;
+
+		private CountDownLatch done;
+
+		@Override
+		public void run() {
+
+			synchronized (this) {
+
+				if (finished)
+					return;
+
+				if (!started && (clients <= 0 || Headless.ready(game, clients))) {
+
+					Main.log("Game %s started", id);
+
+					started = true;
+					start = System.nanoTime();
+				}
+
+				if (started && lockstep != null && !lockstep.advance()) {
+
+					// wait for the trigger of the lockstep or the timeout
+					if (timeout != null)
+						timeout.cancel(false);
+
+					timeout = scheduler.schedule(this, lockstep.getRemaining(), TimeUnit.NANOSECONDS);
+
+					return;
+				}
+
+				if (timeout != null) {
+					timeout.cancel(false);
+					timeout = null;
+				}
+
+				if (started)
+					step();
+
+			}
+
+			// games that are not paced are rescheduled after every step
+			if (future == null && !finished) {
+				if (started)
+					scheduler.execute(this);
+				else
+					scheduler.schedule(this, 100, TimeUnit.MILLISECONDS);
+			}
+
+		}
+
+		private void step() {
+
+			try {
+				game.step();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+
+			Team winner = score > 0 ? Headless.winner(game, score) : null;
+
+			if (winner != null)
+				Main.log("Game %s: team %s reached the score limit", id, winner.getName());
+
+			if (winner != null || (steps > 0 && game.getStep() >= steps))
+				finish();
+
+		}
+
+		private void finish() {
+
+			finished = true;
+
+			if (future != null)
+				future.cancel(false);
+
+			if (timeout != null)
+				timeout.cancel(false);
+
+			if (lockstep != null)
+				lockstep.setTrigger(null);
+
+			Main.log("Game %s finished after %d steps in %d ms", id, game.getStep(),
+					(System.nanoTime() - start) / 1000000);
+
+			for (Team t : game.getTeams())
+				Main.log("Game %s, team %s: %d", id, t.getName(), t.getScore());
+
+			dispatcher.removeGame(id);
+
+			done.countDown();
+
+		}
+
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		System.setProperty("java.awt.headless", "true");
+
+		if (args.length < 1) {
+			System.out.println("Please provide one or more game description files as arguments.");
+			System.exit(1);
+		}
+
+		LinkedHashMap<String, Game> games = new LinkedHashMap<String, Game>();
+
+		for (String file : args) {
+
+			File f = new File(file);
+
+			String id = f.getName();
+
+			if (id.lastIndexOf('.') > 0)
+				id = id.substring(0, id.lastIndexOf('.'));
+
+			String unique = id;
+
+			for (int i = 2; games.containsKey(unique); i++)
+				unique = id + "-" + i;
+
+			games.put(unique, Game.loadFromFile(f));
+
+		}
+
+		int threads = Integer.getInteger("fri.pipt.host.threads", Runtime.getRuntime().availableProcessors());
+
+		final ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(Math.max(1, threads));
+
+		Dispatcher dispatcher = new Dispatcher(PORT, games.values().iterator().next());
+
+		CountDownLatch done = new CountDownLatch(games.size());
+
+		for (Map.Entry<String, Game> e : games.entrySet()) {
+
+			Game game = e.getValue();
+
+			dispatcher.addGame(e.getKey(), game);
+
+			final HostedGame hosted = new HostedGame();
+
+			hosted.id = e.getKey();
+			hosted.game = game;
+			hosted.steps = game.getProperty("headless.steps", 0);
+			hosted.score = game.getProperty("headless.score", 0);
+			hosted.clients = game.getProperty("headless.clients", 0);
+			hosted.dispatcher = dispatcher;
+			hosted.scheduler = scheduler;
+			hosted.done = done;
+
+			float speed = game.getProperty("headless.speed", 1f);
+
+			hosted.lockstep = game.getLockstep();
+
+			synchronized (hosted) {
+				if (hosted.lockstep != null) {
+					hosted.lockstep.setTrigger(new Runnable() {
+						@Override
+						public void run() {
+							scheduler.execute(hosted);
+						}
+					});
+					scheduler.execute(hosted);
+				} else if (speed > 0) {
+					long period = (long) (1000000000L / (game.getSpeed() * speed));
+					hosted.future = scheduler.scheduleAtFixedRate(hosted, period, period, TimeUnit.NANOSECONDS);
+				} else {
+					scheduler.execute(hosted);
+				}
+			}
+
+			Main.log("Hosting game %s (%s)", e.getKey(), game.getTitle());
+
+		}
+
+		Thread thread = new Thread(dispatcher);
+		thread.setDaemon(true);
+		thread.start();
+
+		Main.log("Server ready, %d games on %d threads.", games.size(), threads);
+
+		done.await();
+
+		scheduler.shutdownNow();
+
+		System.exit(0);
+
+	}
+
+}
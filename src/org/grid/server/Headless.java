@@ -0,0 +1,179 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs the game server without the user interface. The game is not paced by
+ * default, every step starts as soon as the previous one is finished. The run
+ * is configured with the following properties in the game file:
+ *
+ * <ul>
+ * <li><tt>headless.speed</tt> - multiplier of <tt>gameplay.speed</tt>, 0 runs
+ * the game as fast as possible (default 0)</li>
+ * <li><tt>headless.steps</tt> - the game stops after the given number of steps
+ * (default 0 - no limit)</li>
+ * <li><tt>headless.score</tt> - the game stops when a team reaches the given
+ * score (default 0 - no limit)</li>
+ * <li><tt>headless.clients</tt> - the game starts when every team has the given
+ * number of connected clients (default 0)</li>
+ * </ul>
+ */
+public class Headless {
+
+	private static final int PORT = 5000;
+
+	public static void main(String[] args) throws IOException {
+
+		System.setProperty("java.awt.headless", "true");
+
+		if (args.length < 1) {
+			System.out.println("Please provide game description file location as an argument.");
+			System.exit(1);
+		}
+
+		final Game game = Game.loadFromFile(new File(args[0]));
+
+		Main.openLog(game);
+
+		float speed = game.getProperty("headless.speed", 0f);
+
+		int steps = game.getProperty("headless.steps", 0);
+
+		int score = game.getProperty("headless.score", 0);
+
+		int clients = game.getProperty("headless.clients", 0);
+
+		Dispatcher dispatcher = new Dispatcher(PORT, game);
+
+		Thread thread = new Thread(dispatcher);
+		thread.setDaemon(true);
+		thread.start();
+
+		Main.log("Server ready.");
+
+		if (clients > 0) {
+
+			Main.log("Waiting for %d clients per team", clients);
+
+			while (!ready(game, clients)) {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {}
+			}
+
+		}
+
+		Lockstep lockstep = game.getLockstep();
+
+		GameClock clock = speed > 0 && lockstep == null ? new GameClock(game.getSpeed() * speed,
+				GameClock.parsePolicy(game.getProperty("gameplay.clock", "catchup"))) : null;
+
+		long start = System.nanoTime();
+
+		Team winner = null;
+
+		while (true) {
+
+			try {
+				if (lockstep != null)
+					lockstep.await();
+				else if (clock != null)
+					clock.await();
+			} catch (InterruptedException e) {
+				break;
+			}
+
+			game.step();
+
+			if (game.getStep() % 1000 == 0) {
+				if (clock != null)
+					Main.log("Game step: %d (%s)", game.getStep(), clock);
+				else if (lockstep != null)
+					Main.log("Game step: %d (%s)", game.getStep(), lockstep);
+				else
+					Main.log("Game step: %d (%d steps per second)", game.getStep(),
+						(long) (game.getStep() * 1000000000.0 / Math.max(1, System.nanoTime() - start)));
+			}
+
+			if (score > 0) {
+
+				winner = winner(game, score);
+
+				if (winner != null)
+					break;
+			}
+
+			if (steps > 0 && game.getStep() >= steps)
+				break;
+
+		}
+
+		long time = (System.nanoTime() - start) / 1000000;
+
+		if (winner != null)
+			Main.log("Team %s reached the score limit", winner.getName());
+
+		Main.log("Game finished after %d steps in %d ms", game.getStep(), time);
+
+		if (clock != null)
+			Main.log("Game clock: %s", clock);
+
+		if (lockstep != null)
+			Main.log("Game clock: %s", lockstep);
+
+		Main.log("%s", game.getProfiler().dump());
+
+		for (Team t : game.getTeams())
+			Main.log("Team %s: %d", t.getName(), t.getScore());
+
+		System.exit(0);
+
+	}
+
+	/**
+	 * Checks if every team has the given number of connected clients.
+	 */
+	static boolean ready(Game game, int clients) {
+
+		for (Team t : game.getTeams()) {
+			if (t.getClientCount() < clients)
+				return false;
+		}
+
+		return true;
+
+	}
+
+	/**
+	 * Returns the first team that has reached the given score.
+	 */
+	static Team winner(Game game, int score) {
+
+		for (Team t : game.getTeams()) {
+			if (t.getScore() >= score)
+				return t;
+		}
+
+		return null;
+
+	}
+
+}
@@ -25,7 +25,7 @@ import java.util.Vector;
 import org.grid.server.Field.BodyPosition;
 
 
-public class History implements Serializable, GameListener {
+public class History implements Serializable, PositionBatchListener {
 
 	private static final long serialVersionUID = -3631531900582757001L;
 
@@ -40,6 +40,11 @@ public class History implements Serializable, GameListener {
 			this.step = step;
 		}
 
+		public HistoryPosition(int x, int y, float offsetX, float offsetY, int step) {
+			super(x, y, offsetX, offsetY);
+			this.step = step;
+		}
+
 		public int getStep() {
 			return step;
 		}
@@ -52,61 +57,94 @@ public class History implements Serializable, GameListener {
 		
 		private Vector<HistoryPosition> history = new Vector<HistoryPosition>();
 		
-		private transient BodyPosition preprevious, previous;
+		private transient boolean hasPrevious, hasPreprevious;
+		
+		private transient int previousX, previousY, prepreviousX, prepreviousY;
+		
+		private transient float previousOffsetX, previousOffsetY, prepreviousOffsetX, prepreviousOffsetY;
 		
 		public void record(BodyPosition p) {
 			
 			if (p == null) {
 				
-				history.add(new HistoryPosition(previous, step-1));
+				if (hasPrevious)
+					history.add(new HistoryPosition(previousX, previousY, previousOffsetX, previousOffsetY, step-1));
 				
 				return;
 				
 			}
 			
-			if (previous == null) {
+			record(p.getX(), p.getY(), p.getOffsetX(), p.getOffsetY());
+			
+		}
+		
+		public void record(int x, int y, float offsetX, float offsetY) {
+			
+			if (!hasPrevious) {
 				
-				previous = new BodyPosition(p);
+				setPrevious(x, y, offsetX, offsetY);
 				
-				history.add(new HistoryPosition(p, step));
+				history.add(new HistoryPosition(x, y, offsetX, offsetY, step));
 				
 				return;
 			}
 			
-			if (preprevious == null) {
+			if (!hasPreprevious) {
 				
-				preprevious = previous;
+				shiftPrevious();
 				
-				previous = new BodyPosition(p);
+				setPrevious(x, y, offsetX, offsetY);
 				
 				return;
 			}
 			
-			float pX = (((float)p.getX() + p.getOffsetX()) +
-				((float)preprevious.getX() + preprevious.getOffsetX())) / 2;
+			float pX = (((float)x + offsetX) +
+				((float)prepreviousX + prepreviousOffsetX)) / 2;
 
-			float pY = (((float)p.getY() + p.getOffsetY()) +
-					((float)preprevious.getY() + preprevious.getOffsetY())) / 2;
+			float pY = (((float)y + offsetY) +
+					((float)prepreviousY + prepreviousOffsetY)) / 2;
 			
-			if (Math.abs(pX - (float)previous.getX() - previous.getOffsetX()) > 0.00001f ||
-				Math.abs(pY - (float)previous.getY() - previous.getOffsetY()) > 0.00001f) {
+			if (Math.abs(pX - (float)previousX - previousOffsetX) > 0.00001f ||
+				Math.abs(pY - (float)previousY - previousOffsetY) > 0.00001f) {
 			
-				history.add(new HistoryPosition(previous, step-1));
+				history.add(new HistoryPosition(previousX, previousY, previousOffsetX, previousOffsetY, step-1));
 				
 			} else {
 				
-				if (!p.hasOffset() && !history.isEmpty()) {
+				if (offsetX == 0 && offsetY == 0 && !history.isEmpty()) {
 					
-					if (!history.lastElement().equals(p))
-						history.add(new HistoryPosition(p, step));
+					HistoryPosition last = history.lastElement();
+					
+					if (last.getX() != x || last.getY() != y)
+						history.add(new HistoryPosition(x, y, offsetX, offsetY, step));
 					
 				}
 				
 			}
 			
-			preprevious = previous;
-			previous = new BodyPosition(p);
+			shiftPrevious();
+			
+			setPrevious(x, y, offsetX, offsetY);
+			
+		}
+		
+		private void setPrevious(int x, int y, float offsetX, float offsetY) {
+			
+			hasPrevious = true;
+			previousX = x;
+			previousY = y;
+			previousOffsetX = offsetX;
+			previousOffsetY = offsetY;
+			
+		}
+		
+		private void shiftPrevious() {
 			
+			hasPreprevious = hasPrevious;
+			prepreviousX = previousX;
+			prepreviousY = previousY;
+			prepreviousOffsetX = previousOffsetX;
+			prepreviousOffsetY = previousOffsetY;
 			
 		}
 		
@@ -129,12 +167,7 @@ public class History implements Serializable, GameListener {
 		
 		public void record(int id, BodyPosition p) {
 		
-			AgentHistory h = agents.get(id);
-			
-			if (h == null) {
-				h = new AgentHistory();
-				agents.put(id, h);
-			}
+			AgentHistory h = get(id);
 			
 			h.record(p);
 			
@@ -145,6 +178,18 @@ public class History implements Serializable, GameListener {
 			
 		}
 		
+		private AgentHistory get(int id) {
+			
+			AgentHistory h = agents.get(id);
+			
+			if (h == null) {
+				h = new AgentHistory();
+				agents.put(id, h);
+			}
+			
+			return h;
+		}
+		
 		public String getTeamName() {
 			return teamName;
 		}
@@ -202,6 +247,32 @@ public class History implements Serializable, GameListener {
 
 	@Override
 	public void position(Team team, int id, BodyPosition p) {
+		getTeamHistory(team).record(id, p);
+	}
+
+	@Override
+	public void positions(PositionBatch batch) {
+		
+		Team team = null;
+		TeamHistory h = null;
+		
+		for (int i = 0; i < batch.size(); i++) {
+			
+			// moves are grouped by team
+			if (batch.getTeam(i) != team) {
+				team = batch.getTeam(i);
+				h = getTeamHistory(team);
+			}
+			
+			h.get(batch.getId(i)).record(batch.getX(i), batch.getY(i), 
+					batch.getOffsetX(i), batch.getOffsetY(i));
+			
+		}
+		
+	}
+	
+	private TeamHistory getTeamHistory(Team team) {
+		
 		TeamHistory h = teams.get(team.getName());
 		
 		if (h == null) {
@@ -209,6 +280,6 @@ public class History implements Serializable, GameListener {
 			teams.put(team.getName(), h);
 		}
 		
-		h.record(id, p);
+		return h;
 	}
 }
@@ -0,0 +1,210 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.grid.server.Dispatcher.Client;
+import org.grid.server.Dispatcher.Status;
+
+/**
+ * Runs the game in lockstep: the next step is due as soon as every client
+ * that controls a live agent has sent a move since the previous step, or when
+ * the timeout of the step expires. Agents that are still moving between two
+ * cells can not be controlled, their clients are not waited for. Clients that
+ * join during a step are only waited for from the next step on, clients that
+ * disconnect are not waited for.
+ *
+ * The game marks the clients through {@link #begin(Collection)} and
+ * {@link #committed(Client)}, the scheduler either blocks in {@link #await()}
+ * or polls {@link #advance()} and is notified through the trigger.
+ */
+public class Lockstep {
+
+	// how often a blocked scheduler checks for disconnected clients
+	private static final long PRUNE = 10000000;
+
+	private final long timeout;
+
+	private final HashSet<Client> pending = new HashSet<Client>();
+
+	private long deadline = 0;
+
+	private long steps, timeouts, waiting, began;
+
+	private Runnable trigger = null;
+
+	/**
+	 * Creates a lockstep scheduler.
+	 *
+	 * @param timeout the longest time that a step waits for the clients in
+	 *            milliseconds
+	 */
+	public Lockstep(long timeout) {
+
+		this.timeout = Math.max(1, timeout) * 1000000;
+
+	}
+
+	/**
+	 * Sets a task that is run when the last pending client commits its move.
+	 * The task is run by the thread that delivered the move, so it should only
+	 * hand the step over to the scheduler.
+	 *
+	 * @param trigger the task or <tt>null</tt>
+	 */
+	public synchronized void setTrigger(Runnable trigger) {
+		this.trigger = trigger;
+	}
+
+	/**
+	 * Starts waiting for the moves of the next step. Called by the game at the
+	 * end of a step.
+	 *
+	 * @param teams the teams of the game
+	 */
+	synchronized void begin(Collection<Team> teams) {
+
+		pending.clear();
+
+		for (Team t : teams)
+			t.getIdleClients(pending);
+
+		began = System.nanoTime();
+		deadline = began + timeout;
+
+	}
+
+	/**
+	 * Marks the move of a client for the next step.
+	 *
+	 * @param client the client
+	 */
+	void committed(Client client) {
+
+		Runnable fire = null;
+
+		synchronized (this) {
+
+			if (pending.remove(client) && pending.isEmpty()) {
+				notifyAll();
+				fire = trigger;
+			}
+
+		}
+
+		if (fire != null)
+			fire.run();
+
+	}
+
+	/**
+	 * Checks if the next step is due and accounts it if it is. Does not block.
+	 *
+	 * @return <tt>true</tt> if the game should be stepped now
+	 */
+	public synchronized boolean advance() {
+
+		prune();
+
+		long now = System.nanoTime();
+
+		if (!pending.isEmpty() && now < deadline)
+			return false;
+
+		if (!pending.isEmpty())
+			timeouts++;
+
+		steps++;
+
+		if (began != 0)
+			waiting += now - began;
+
+		began = 0;
+
+		// the step is due only once
+		pending.clear();
+		deadline = now;
+
+		return true;
+
+	}
+
+	/**
+	 * Returns the time until the timeout of the current step.
+	 *
+	 * @return the time in nanoseconds
+	 */
+	public synchronized long getRemaining() {
+
+		return Math.max(0, deadline - System.nanoTime());
+
+	}
+
+	/**
+	 * Waits until the next step is due.
+	 *
+	 * @throws InterruptedException
+	 */
+	public synchronized void await() throws InterruptedException {
+
+		while (!advance()) {
+
+			long remaining = Math.min(PRUNE, deadline - System.nanoTime());
+
+			if (remaining > 0)
+				wait(remaining / 1000000, (int) (remaining % 1000000));
+
+		}
+
+	}
+
+	private void prune() {
+
+		Iterator<Client> i = pending.iterator();
+
+		while (i.hasNext()) {
+			Client c = i.next();
+			if (c.getStatus() != Status.USED || c.getAgent() == null || !c.getAgent().isAlive())
+				i.remove();
+		}
+
+	}
+
+	/**
+	 * Returns the number of steps that were started because of the timeout.
+	 */
+	public synchronized long getTimeouts() {
+		return timeouts;
+	}
+
+	public synchronized long getSteps() {
+		return steps;
+	}
+
+	@Override
+	public synchronized String toString() {
+
+		return String.format("lockstep, %d steps, %d timeouts, wait avg %.2f ms", steps, timeouts,
+				steps == 0 ? 0 : waiting / 1000000.0 / steps);
+
+	}
+
+}
@@ -77,11 +77,12 @@ public class Main {
 
 	private static boolean running = false;
 
-	private static GameSwingView view = new GameSwingView();
+	// the user interface is created in main so that the class can be used headless
+	private static GameSwingView view;
 
 	private static ClientsPanel clientsPanel = null;
 	
-	private static JLabel gameStepDisplay = new JLabel();
+	private static JLabel gameStepDisplay;
 	
 	private static PrintWriter log;
 	
@@ -92,20 +93,7 @@ public class Main {
 	
 	private static final int MAX_TEAMS_VERBOSE = 4;
 	
-	private static Action playpause = new AbstractAction("Play") {
-
-		private static final long serialVersionUID = 1L;
-
-		@Override
-		public void actionPerformed(ActionEvent arg0) {
-
-			running = !running;
-
-			setEnabled(false);
-			
-			//putValue(AbstractAction.NAME, running ? "Pause" : "Play");
-		}
-	};
+	private static Action playpause;
 
 	private static class GameSwingView extends SwingView implements
 			GameListener, SelectionObserver, MouseListener {
@@ -117,6 +105,9 @@ public class Main {
 		private LinkedList<Message> buffer = new LinkedList<Message>();
 
 		private VisitMap visualization = null;
+		
+		// reused by paint for the positions of the message lines
+		private final BodyPosition p1 = new BodyPosition(0, 0), p2 = new BodyPosition(0, 0);
 
 		public class Message {
 
@@ -168,10 +159,7 @@ public class Main {
 
 			for (Message m : active) {
 
-				BodyPosition p1 = field.getPosition(m.sender);
-				BodyPosition p2 = field.getPosition(m.receiver);
-
-				if (p1 == null || p2 == null)
+				if (!field.getPosition(m.sender, p1) || !field.getPosition(m.receiver, p2))
 					continue;
 
 				int x1 = (int) ((p1.getX() + p1.getOffsetX()) * cellSize)
@@ -336,36 +324,75 @@ public class Main {
 
 		game = Game.loadFromFile(new File(args[0]));
 
-		try {
-			log = new PrintWriter(new File(logDate.format(new Date()) + "_" + game.getTitle() + ".log"));
-			
-		} catch (Exception e) {}
+		openLog(game);
 		
+		view = new GameSwingView();
 		
-		Dispatcher dispatcher = new Dispatcher(PORT, game);
+		gameStepDisplay = new JLabel();
+		
+		playpause = new AbstractAction("Play") {
 
-		final int gameSpeed = game.getSpeed();
+			private static final long serialVersionUID = 1L;
 
-		game.addListener(view);
+			@Override
+			public void actionPerformed(ActionEvent arg0) {
+
+				running = !running;
+
+				setEnabled(false);
+				
+				//putValue(AbstractAction.NAME, running ? "Pause" : "Play");
+			}
+		};
+		
+		Dispatcher dispatcher = new Dispatcher(PORT, game);
+
+		final GameClock clock = new GameClock(game.getSpeed(),
+				GameClock.parsePolicy(game.getProperty("gameplay.clock", "catchup")));
 
-		game.addListener(history);
+		if (game.getProperty("server.listeners", "sync").equalsIgnoreCase("async")) {
+			
+			int capacity = game.getProperty("server.listeners.queue", 4096);
+			
+			// the view only paints, it can miss events
+			game.addListener(new AsyncGameListener(view, capacity, AsyncGameListener.Policy.DROP_OLDEST));
+			
+			game.addListener(new AsyncGameListener(history, capacity, AsyncGameListener.parsePolicy(
+					game.getProperty("server.listeners.policy", "block"), AsyncGameListener.Policy.BLOCK)));
+			
+		} else {
+			
+			game.addListener(view);
+	
+			game.addListener(history);
+		
+		}
 		
 		(new Thread(new Runnable() {
 
 			@Override
 			public void run() {
-				int sleep = 1000 / gameSpeed;
-				long start, used;
+				long start, used, overruns = 0;
 				while (true) {
 
-					start = System.currentTimeMillis();
+					try {
+						if (game.getLockstep() != null)
+							game.getLockstep().await();
+						else
+							clock.await();
+					} catch (InterruptedException e) {
+						e.printStackTrace();
+						return;
+					}
+
+					start = System.nanoTime();
 
 					if (running)
 						game.step();
 
 					view.update(game.getField());
 
-					used = System.currentTimeMillis() - start;
+					used = System.nanoTime() - start;
 
 					stepTime += used;
 					stepCount++;
@@ -380,28 +407,23 @@ public class Main {
 							renderTime = 0;
 						}
 
-						stepFPS = (stepCount * 1000) / Math.max(1, stepTime);
+						stepFPS = (stepCount * 1000000000L) / Math.max(1, stepTime);
 						stepCount = 0;
 						stepTime = 0;
 
 						info(
 										"Game step: %d (step: %d fps, render: %d fps)",
 										game.getStep(), stepFPS, renderFPS);
+						
+						if (clock.getOverruns() > overruns) {
+							info("Warning: low frame rate (%s)", clock);
+							overruns = clock.getOverruns();
+						}
 					}
 
 					if (game.getStep() % 10 == 0) {
 						gameStepDisplay.setText(String.format("Step: %d", game.getStep()));
 					}
-					
-					try {
-						if (used < sleep)
-							Thread.sleep(sleep - used);
-						else {
-							info("Warning: low frame rate");
-						}
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
 
 				}
 
@@ -420,7 +442,21 @@ public class Main {
 
 		JPanel status = new JPanel(new BorderLayout());
 
-		status.add(new JButton(playpause), BorderLayout.WEST);
+		JPanel buttons = new JPanel(new BorderLayout());
+		
+		buttons.add(new JButton(playpause), BorderLayout.WEST);
+		
+		buttons.add(new JButton(new AbstractAction("Profile") {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				log("%s", game.getProfiler().dump());
+			}
+		}), BorderLayout.EAST);
+		
+		status.add(buttons, BorderLayout.WEST);
 
 		final JComboBox zoom = new JComboBox(ZOOM_LEVELS_TITLES);
 
@@ -494,6 +530,21 @@ public class Main {
 	
 	private static DateFormat date = new SimpleDateFormat("[hh:mm:ss] ");
 	
+	/**
+	 * Opens the log file for the given game, the messages are also written
+	 * to the standard output.
+	 * 
+	 * @param game the game
+	 */
+	static void openLog(Game game) {
+		
+		try {
+			log = new PrintWriter(new File(logDate.format(new Date()) + "_" + game.getTitle() + ".log"));
+			
+		} catch (Exception e) {}
+		
+	}
+	
 	public static void log(String format, Object ... objects) {
 		
 		try {
@@ -0,0 +1,113 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.util.Arrays;
+
+/**
+ * The positions of all agents that have moved in a step, stored in columns.
+ * The game reuses the same batch in every step, listeners may only read it
+ * during the {@link PositionBatchListener#positions(PositionBatch)} call.
+ */
+public class PositionBatch {
+
+	private Team[] teams = new Team[64];
+
+	private int[] ids = new int[64];
+
+	private int[] x = new int[64], y = new int[64];
+
+	private float[] offsetX = new float[64], offsetY = new float[64];
+
+	private int size = 0;
+
+	void clear() {
+
+		Arrays.fill(teams, 0, size, null);
+
+		size = 0;
+
+	}
+
+	void add(Team team, int id, int x, int y, float offsetX, float offsetY) {
+
+		if (size == ids.length) {
+			int capacity = size * 2;
+			teams = Arrays.copyOf(teams, capacity);
+			ids = Arrays.copyOf(ids, capacity);
+			this.x = Arrays.copyOf(this.x, capacity);
+			this.y = Arrays.copyOf(this.y, capacity);
+			this.offsetX = Arrays.copyOf(this.offsetX, capacity);
+			this.offsetY = Arrays.copyOf(this.offsetY, capacity);
+		}
+
+		teams[size] = team;
+		ids[size] = id;
+		this.x[size] = x;
+		this.y[size] = y;
+		this.offsetX[size] = offsetX;
+		this.offsetY[size] = offsetY;
+
+		size++;
+
+	}
+
+	/**
+	 * Replaces the content of this batch with the moves of another batch.
+	 */
+	void copy(PositionBatch batch) {
+
+		clear();
+
+		for (int i = 0; i < batch.size; i++)
+			add(batch.teams[i], batch.ids[i], batch.x[i], batch.y[i], batch.offsetX[i], batch.offsetY[i]);
+
+	}
+
+	/**
+	 * Returns the number of moves in the batch.
+	 */
+	public int size() {
+		return size;
+	}
+
+	public Team getTeam(int index) {
+		return teams[index];
+	}
+
+	public int getId(int index) {
+		return ids[index];
+	}
+
+	public int getX(int index) {
+		return x[index];
+	}
+
+	public int getY(int index) {
+		return y[index];
+	}
+
+	public float getOffsetX(int index) {
+		return offsetX[index];
+	}
+
+	public float getOffsetY(int index) {
+		return offsetY[index];
+	}
+
+}
@@ -0,0 +1,35 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+/**
+ * A game listener that receives the moves of a step in a single call. The
+ * game does not call {@link GameListener#position(Team, int, org.grid.server.Field.BodyPosition)}
+ * for listeners that implement this interface.
+ */
+public interface PositionBatchListener extends GameListener {
+
+	/**
+	 * Called once per step after all agents have moved, before the messages
+	 * of the step are delivered to the agents.
+	 * 
+	 * @param batch the moves of the step, only valid during the call
+	 */
+	public void positions(PositionBatch batch);
+	
+}
@@ -0,0 +1,226 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the time spent in the phases of {@link Game#step()}, a few counters
+ * and the time spent in game listeners by their class. The profiler is always
+ * on, the phases are only measured by the game thread, the values can be read
+ * and reset from any thread.
+ */
+public class StepProfiler {
+
+	public static enum Phase {
+		COMMANDS, EVENTS, MOVE, DISPATCH, SNAPSHOT, PUSH, SPAWN_AGENTS, SPAWN_FLAGS, CLEANUP
+	}
+
+	public static enum Counter {
+		AGENTS_MOVED, MESSAGES_DELIVERED, AGENTS_SPAWNED, FLAGS_SPAWNED
+	}
+
+	private final AtomicLongArray time = new AtomicLongArray(Phase.values().length);
+
+	private final AtomicLongArray max = new AtomicLongArray(Phase.values().length);
+
+	private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+	private final AtomicLong steps = new AtomicLong();
+
+	private final ConcurrentHashMap<GameListener, AtomicLong> listeners = new ConcurrentHashMap<GameListener, AtomicLong>();
+
+	private long mark;
+
+	/**
+	 * Starts measuring a step.
+	 */
+	void begin() {
+
+		mark = System.nanoTime();
+
+	}
+
+	/**
+	 * Adds the time since the previous mark to the given phase. A phase may be
+	 * ended several times in a step.
+	 *
+	 * @param phase the phase
+	 */
+	void end(Phase phase) {
+
+		long now = System.nanoTime();
+		long used = now - mark;
+
+		mark = now;
+
+		time.addAndGet(phase.ordinal(), used);
+
+		if (used > max.get(phase.ordinal()))
+			max.set(phase.ordinal(), used);
+
+	}
+
+	/**
+	 * Finishes a step.
+	 */
+	void finish() {
+
+		steps.incrementAndGet();
+
+	}
+
+	void count(Counter counter, int value) {
+
+		if (value != 0)
+			counters.addAndGet(counter.ordinal(), value);
+
+	}
+
+	void listener(GameListener listener, long used) {
+
+		AtomicLong total = listeners.get(listener);
+
+		if (total == null) {
+			listeners.putIfAbsent(listener, new AtomicLong());
+			total = listeners.get(listener);
+		}
+
+		total.addAndGet(used);
+
+	}
+
+	public long getSteps() {
+		return steps.get();
+	}
+
+	/**
+	 * Returns the total time spent in a phase.
+	 *
+	 * @param phase the phase
+	 * @return the time in nanoseconds
+	 */
+	public long getTime(Phase phase) {
+		return time.get(phase.ordinal());
+	}
+
+	/**
+	 * Returns the longest time spent in a phase in a single measurement.
+	 *
+	 * @param phase the phase
+	 * @return the time in nanoseconds
+	 */
+	public long getMaxTime(Phase phase) {
+		return max.get(phase.ordinal());
+	}
+
+	public long getCount(Counter counter) {
+		return counters.get(counter.ordinal());
+	}
+
+	/**
+	 * Returns the time spent in listeners, including the events that are
+	 * fired outside of a step. Asynchronous listeners are listed by the class
+	 * of the listener that they deliver to, their time is the time that the
+	 * game spent queuing the events.
+	 *
+	 * @return the time in nanoseconds by the name of the listener class
+	 */
+	public Map<String, Long> getListenerTimes() {
+
+		TreeMap<String, Long> result = new TreeMap<String, Long>();
+
+		for (Map.Entry<GameListener, AtomicLong> e : listeners.entrySet()) {
+
+			String name = getName(e.getKey());
+
+			Long previous = result.get(name);
+
+			result.put(name, e.getValue().get() + (previous == null ? 0 : previous));
+		}
+
+		return result;
+
+	}
+
+	private static String getName(GameListener listener) {
+
+		if (listener instanceof AsyncGameListener)
+			return ((AsyncGameListener) listener).getListener().getClass().getName() + " (async)";
+
+		return listener.getClass().getName();
+
+	}
+
+	/**
+	 * Clears all values.
+	 */
+	public void reset() {
+
+		for (int i = 0; i < time.length(); i++) {
+			time.set(i, 0);
+			max.set(i, 0);
+		}
+
+		for (int i = 0; i < counters.length(); i++)
+			counters.set(i, 0);
+
+		for (AtomicLong l : listeners.values())
+			l.set(0);
+
+		steps.set(0);
+
+	}
+
+	/**
+	 * Formats all values as a table.
+	 */
+	public String dump() {
+
+		long n = Math.max(1, getSteps());
+
+		StringBuilder builder = new StringBuilder();
+
+		builder.append(String.format("Step profile (%d steps)%n", getSteps()));
+
+		builder.append(String.format("  %-20s %12s %10s %10s%n", "phase", "total ms", "avg us", "max us"));
+
+		for (Phase p : Phase.values()) {
+			builder.append(String.format("  %-20s %12.1f %10.1f %10.1f%n", p.name().toLowerCase(),
+					getTime(p) / 1000000.0, getTime(p) / 1000.0 / n, getMaxTime(p) / 1000.0));
+		}
+
+		for (Counter c : Counter.values()) {
+			builder.append(String.format("  %-20s %12d %10.1f per step%n", c.name().toLowerCase(),
+					getCount(c), (double) getCount(c) / n));
+		}
+
+		for (Map.Entry<String, Long> e : getListenerTimes().entrySet()) {
+			builder.append(String.format("  listener %s: %.1f ms (%.1f us per step)%n", e.getKey(),
+					e.getValue() / 1000000.0, e.getValue() / 1000.0 / n));
+		}
+
+		return builder.toString();
+
+	}
+
+}
@@ -18,6 +18,7 @@
 package org.grid.server;
 
 import java.awt.Color;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
@@ -25,9 +26,13 @@ import java.util.Vector;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.grid.arena.Arena;
+import org.grid.protocol.BufferPool;
+import org.grid.protocol.Message.Direction;
+import org.grid.protocol.Position;
 import org.grid.server.Dispatcher.Client;
 import org.grid.server.Field.Body;
 import org.grid.server.Field.BodyPosition;
+import org.grid.server.Field.Cell;
 import org.grid.server.Game.MessageContainter;
 
 
@@ -76,14 +81,18 @@ public class Team {
 			
 			if (flag != null && flag.getTeam() == getTeam()) {
 				
-				if (getTeam().flags.contains(flag)) {
+				// agents of a team may be moved by different threads
+				synchronized (getTeam().flags) {
 				
-					getTeam().score++;
-					getTeam().scoreChange(getTeam().score);
-					getTeam().flags.remove(flag);
-					
-					Main.log("Team %s: %d flags collected", getTeam().getName(), getTeam().score);
+					if (getTeam().flags.contains(flag)) {
 					
+						getTeam().score++;
+						getTeam().scoreChange(getTeam().score);
+						getTeam().flags.remove(flag);
+						
+						Main.log("Team %s: %d flags collected", getTeam().getName(), getTeam().score);
+						
+					}
 				}
 			}
 			
@@ -97,6 +106,9 @@ public class Team {
 	
 	private LinkedList<Agent> removed = new LinkedList<Agent>();
 	
+	// restored agents that wait for a client
+	private LinkedList<Agent> orphans = new LinkedList<Agent>();
+	
 	private HashSet<Integer> allocatedIds = new HashSet<Integer>();
 	
 	private HashSet<Flag> flags = new HashSet<Flag>();
@@ -149,7 +161,9 @@ public class Team {
 		
 		Flag f = new Flag(Arena.TILE_FLAG, this, weight);
 		
-		flags.add(f);
+		synchronized (flags) {
+			flags.add(f);
+		}
 		
 		return f;
 		
@@ -215,15 +229,59 @@ public class Team {
 		
 	}
 	
+	/**
+	 * Returns the number of connected clients, with or without an agent.
+	 * 
+	 * @return the number of clients
+	 */
+	public int getClientCount() {
+		
+		synchronized (pool) {
+			
+			return used.size() + pool.size();
+			
+		}
+		
+	}
+	
+	public int getScore() {
+		return score;
+	}
+	
 	public int size() {
 		
 		synchronized (pool) {
 			
-			return used.size();
+			return used.size() + orphans.size();
 			
 		}
 		
 		
+	}
+	
+	/**
+	 * Gives the restored agents to the clients that are waiting for an agent.
+	 * Called by the game before new agents are spawned.
+	 */
+	public void adoptAgents() {
+		
+		synchronized (pool) {
+			
+			while (!orphans.isEmpty() && !pool.isEmpty()) {
+				
+				Agent agt = orphans.poll();
+				
+				Client client = pool.poll();
+				
+				client.setAgent(agt);
+				used.add(client);
+				
+				Main.log("Restored agent assigned for team: " + name + " (id: " + agt.getId() + ")");
+				
+			}
+			
+		}
+		
 	}
 
 	public void cleanup(Field field) {
@@ -251,15 +309,22 @@ public class Team {
 			used.removeAll(remove);
 			pool.addAll(remove);
 			
+			for (Agent a : orphans) {
+				if (!a.isAlive())
+					removed.add(a);
+			}
+			
+			orphans.removeAll(removed);
+			
 			for (Agent a : removed) {
 				
-				BodyPosition pos = field.getPosition(a);
+				int x = field.getBodyX(a), y = field.getBodyY(a);
 				
 				field.removeBody(a);
 				
-				if (a.hasFlag() && pos != null) {
+				if (a.hasFlag() && x >= 0) {
 					for (Flag flag : a.getFlags())
-						field.putBodyCloseTo(flag, new BodyPosition(pos.getX(), pos.getY()));
+						field.putBodyCloseTo(flag, new Position(x, y));
 				}
 			}
 
@@ -289,7 +354,61 @@ public class Team {
 		return moved;
 	}
 	
-	public void dispatch() {
+	/**
+	 * Plans the moves of all agents of the team without changing the field,
+	 * see {@link Agent#plan(Field)}.
+	 * 
+	 * @param field the field
+	 * @return the list of planned moves
+	 */
+	public List<Agent.Move> plan(Field field) {
+		
+		Vector<Agent.Move> moves = new Vector<Agent.Move>();
+		
+		synchronized (pool) {
+
+			for (Client c : used) {
+			
+				if (c.getAgent() != null) {
+					Agent.Move move = c.getAgent().plan(field);
+					if (move != null)
+						moves.add(move);
+				}
+				
+			}
+
+		}
+	
+		return moves;
+	}
+	
+	/**
+	 * Applies the planned moves in the order they were planned.
+	 * 
+	 * @param field the field
+	 * @param moves the moves returned by {@link #plan(Field)}
+	 * @return the list of agents that have moved
+	 */
+	public List<Agent> commit(Field field, List<Agent.Move> moves) {
+		
+		Vector<Agent> moved = new Vector<Agent>();
+		
+		for (Agent.Move move : moves) {
+			if (move.getAgent().commit(field, move))
+				moved.add(move.getAgent());
+		}
+		
+		return moved;
+	}
+	
+	/**
+	 * Delivers the messages that are due to their receivers.
+	 * 
+	 * @return the number of delivered messages
+	 */
+	public int dispatch() {
+		
+		int delivered = 0;
 		
 		synchronized (pool) {
 
@@ -301,13 +420,34 @@ public class Team {
 						
 						Client cltto = findById(msg.getTo());
 						
-						if (cltto != null)
+						if (cltto != null) {
 							cltto.send(c.getAgent().getId(), msg.getMessage());
+							delivered++;
+						} else
+							BufferPool.release(msg.getMessage());
 						
 					}
 				}
 			}
 		}
+		
+		return delivered;
+	}
+	
+	/**
+	 * Sends the state to all clients that have subscribed to it.
+	 * 
+	 * @param step the current step of the game
+	 */
+	public void pushStates(int step) {
+		
+		synchronized (pool) {
+
+			for (Client c : used)
+				c.pushState(step);
+			
+		}
+		
 	}
 	
 	public Client findById(int id) {
@@ -326,14 +466,188 @@ public class Team {
 		
 	}
 	
+	/**
+	 * Adds the clients that control a live agent which is not moving to the
+	 * collection.
+	 * 
+	 * @param result the collection
+	 */
+	void getIdleClients(Collection<Client> result) {
+		
+		synchronized (pool) {
+			
+			for (Client cl : used) {
+				
+				Agent agt = cl.getAgent();
+				
+				if (cl.getStatus() == Dispatcher.Status.USED && agt != null && agt.isAlive()
+						&& agt.getDirection() == Direction.NONE)
+					result.add(cl);
+				
+			}
+			
+		}
+		
+	}
+	
 	public int getActiveFlagsCount() {
-		return flags.size();
+		synchronized (flags) {
+			return flags.size();
+		}
+	}
+	
+	/**
+	 * Returns the agents of the team in the order in which they are moved.
+	 * 
+	 * @return the list of agents
+	 */
+	public List<Agent> getAgents() {
+		
+		Vector<Agent> agents = new Vector<Agent>();
+		
+		synchronized (pool) {
+
+			for (Client c : used) {
+				if (c.getAgent() != null)
+					agents.add(c.getAgent());
+			}
+
+		}
+		
+		return agents;
 	}
 	
 	public String toString() {
 		return name;
 	}
 	
+	/**
+	 * Copies the state of the team for a checkpoint.
+	 * 
+	 * @param field the field
+	 * @return the state
+	 */
+	Checkpoint.TeamState checkpoint(Field field) {
+		
+		Checkpoint.TeamState state = new Checkpoint.TeamState();
+		
+		state.name = name;
+		state.score = score;
+		
+		Vector<Agent> agents = new Vector<Agent>();
+		
+		synchronized (pool) {
+			
+			state.ids = new int[allocatedIds.size()];
+			
+			int i = 0;
+			for (int id : allocatedIds)
+				state.ids[i++] = id;
+			
+			for (Client c : used) {
+				if (c.getAgent() != null && c.getAgent().isAlive())
+					agents.add(c.getAgent());
+			}
+			
+			for (Agent a : orphans) {
+				if (a.isAlive())
+					agents.add(a);
+			}
+			
+		}
+		
+		synchronized (flags) {
+			
+			Vector<Cell> cells = new Vector<Cell>();
+			Vector<Float> weights = new Vector<Float>();
+			
+			for (Flag f : flags) {
+				Cell c = field.getBodyCell(f);
+				if (c != null) {
+					cells.add(c);
+					weights.add(f.getWeight());
+				}
+			}
+			
+			state.flagX = new int[cells.size()];
+			state.flagY = new int[cells.size()];
+			state.flagWeight = new float[cells.size()];
+			
+			for (int i = 0; i < cells.size(); i++) {
+				state.flagX[i] = cells.get(i).getX();
+				state.flagY[i] = cells.get(i).getY();
+				state.flagWeight[i] = weights.get(i);
+			}
+			
+		}
+		
+		Vector<Checkpoint.AgentState> states = new Vector<Checkpoint.AgentState>();
+		
+		for (Agent a : agents) {
+			Checkpoint.AgentState s = a.checkpoint(field);
+			if (s != null)
+				states.add(s);
+		}
+		
+		state.agents = states.toArray(new Checkpoint.AgentState[states.size()]);
+		
+		return state;
+		
+	}
+	
+	/**
+	 * Replaces the flags, score and agents of the team with the state from a
+	 * checkpoint. The restored agents are given to the clients that join the
+	 * team.
+	 * 
+	 * @param state the state
+	 * @param field the field
+	 */
+	void restore(Checkpoint.TeamState state, Field field) {
+		
+		synchronized (flags) {
+			
+			for (Flag f : flags)
+				field.removeBody(f);
+			
+			flags.clear();
+			
+		}
+		
+		score = state.score;
+		
+		for (int i = 0; i < state.flagWeight.length; i++) {
+			
+			Flag flag = newFlag(state.flagWeight[i]);
+			
+			if (field.putBody(flag, new BodyPosition(state.flagX[i], state.flagY[i])))
+				continue;
+			
+			if (field.putBodyCloseTo(flag, new Position(state.flagX[i], state.flagY[i])))
+				continue;
+			
+			Main.log("Flag of team %s at %d, %d could not be restored", name, state.flagX[i], state.flagY[i]);
+			
+			synchronized (flags) {
+				flags.remove(flag);
+			}
+			
+		}
+		
+		synchronized (pool) {
+			
+			allocatedIds.clear();
+			
+			for (int id : state.ids)
+				allocatedIds.add(id);
+			
+			for (Checkpoint.AgentState s : state.agents)
+				orphans.add(Agent.restore(this, s, field));
+			
+		}
+		
+	}
+	
 	private int getUniqueId() {
 		
 		while (true) {
@@ -9,7 +9,7 @@ import org.grid.server.Field.BodyPosition;
 import org.grid.server.History.HistoryPosition;
 
 
-public class VisitMap implements Arena, Palette, GameListener {
+public class VisitMap implements Arena, Palette, PositionBatchListener {
 
 	private static Color heatPalette[];
 	
@@ -41,7 +41,7 @@ public class VisitMap implements Arena, Palette, GameListener {
 	
 	private Agent agent;
 	
-	private BodyPosition lastPosition = null;
+	private int lastX = -1, lastY = -1;
 	
 	private int neighborhoodSize;
 	
@@ -80,18 +80,12 @@ public class VisitMap implements Arena, Palette, GameListener {
 		if (h == null)
 			return;
 		
-		lastPosition = null;
+		lastX = -1;
+		lastY = -1;
 		
-		for (HistoryPosition p : h) {
-			if (lastPosition == null || !p.equals(lastPosition)) {
+		for (HistoryPosition p : h) 
+			visit(p.getX(), p.getY());
 
-				cells[p.getY() * width + p.getX()]++;
-				
-				markNeighborhood(p.getX(), p.getY());
-			}
-			
-			lastPosition = p;
-		}
 		
 		
 	}
@@ -142,12 +136,31 @@ public class VisitMap implements Arena, Palette, GameListener {
 		if (agent.getId() != id)
 			return;
 		
-		if (lastPosition == null || !p.equals(lastPosition)) {
+		visit(p.getX(), p.getY());
+	}
+
+	@Override
+	public void positions(PositionBatch batch) {
+		
+		int id = agent.getId();
+		
+		for (int i = 0; i < batch.size(); i++) {
+			if (batch.getId(i) == id)
+				visit(batch.getX(i), batch.getY(i));
+		}
+		
+	}
+	
+	private void visit(int x, int y) {
+		
+		if (x != lastX || y != lastY) {
 
-			cells[p.getY() * width + p.getX()]++;
-			markNeighborhood(p.getX(), p.getY());
+			cells[y * width + x]++;
+			markNeighborhood(x, y);
 		}
-		lastPosition = p;
+		
+		lastX = x;
+		lastY = y;
 	}
 
 	private void markNeighborhood(int x, int y) {
@@ -0,0 +1,167 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.protocol;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Measures the throughput of several producers that send messages to a single
+ * consumer, with the mailbox and with the queues that it replaced. The
+ * arguments are the number of messages and the numbers of producers.
+ */
+public class MailboxBenchmark {
+
+	private static abstract class Queue {
+
+		abstract void put(Object message) throws InterruptedException;
+
+		abstract Object take() throws InterruptedException;
+
+	}
+
+	/**
+	 * The pattern that was used before: a concurrent queue with wait and
+	 * notifyAll.
+	 */
+	private static class Notifying extends Queue {
+
+		private final ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>();
+
+		@Override
+		void put(Object message) {
+			synchronized (queue) {
+				queue.add(message);
+				queue.notifyAll();
+			}
+		}
+
+		@Override
+		Object take() throws InterruptedException {
+			synchronized (queue) {
+				while (queue.isEmpty())
+					queue.wait();
+				return queue.poll();
+			}
+		}
+
+	}
+
+	private static class Blocking extends Queue {
+
+		private final BlockingQueue<Object> queue;
+
+		private Blocking(BlockingQueue<Object> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		void put(Object message) throws InterruptedException {
+			queue.put(message);
+		}
+
+		@Override
+		Object take() throws InterruptedException {
+			return queue.take();
+		}
+
+	}
+
+	private static class Boxed extends Queue {
+
+		private final Mailbox<Object> mailbox = new Mailbox<Object>(4096);
+
+		@Override
+		void put(Object message) {
+			mailbox.put(message);
+		}
+
+		@Override
+		Object take() throws InterruptedException {
+			return mailbox.take();
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int messages = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+
+		int[] producers = {1, 4, 16};
+
+		if (args.length > 1) {
+			producers = new int[args.length - 1];
+			for (int i = 1; i < args.length; i++)
+				producers[i - 1] = Integer.parseInt(args[i]);
+		}
+
+		System.out.printf("%d messages, %d processors, Mmsg/s%n", messages, Runtime.getRuntime().availableProcessors());
+		System.out.printf("%-10s %-12s %-12s %-12s %-12s%n", "producers", "notifyAll", "linked", "array", "mailbox");
+
+		for (int round = 0; round < 3; round++) {
+			for (int p : producers) {
+				System.out.printf("%-10d %-12.1f %-12.1f %-12.1f %-12.1f%n", p,
+						run(new Notifying(), p, messages),
+						run(new Blocking(new LinkedBlockingQueue<Object>()), p, messages),
+						run(new Blocking(new ArrayBlockingQueue<Object>(4096)), p, messages),
+						run(new Boxed(), p, messages));
+			}
+		}
+
+	}
+
+	private static double run(final Queue queue, int producers, int messages) throws InterruptedException {
+
+		final Object message = new Object();
+
+		final int each = messages / producers;
+
+		Thread[] threads = new Thread[producers];
+
+		for (int i = 0; i < producers; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (int j = 0; j < each; j++)
+							queue.put(message);
+					} catch (InterruptedException e) {}
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+
+		for (Thread t : threads)
+			t.start();
+
+		for (int i = each * producers; i > 0; i--)
+			queue.take();
+
+		long time = System.nanoTime() - start;
+
+		for (Thread t : threads)
+			t.join();
+
+		return each * producers * 1000.0 / time;
+
+	}
+
+}
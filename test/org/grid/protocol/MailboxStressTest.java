@@ -0,0 +1,157 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.protocol;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Checks the mailbox while several producers add elements and other threads
+ * replace and remove queued elements, as the coalescing outgoing queue does.
+ * Every element has to be either taken by the consumer, possibly as its
+ * replacement, or removed, and the mailbox has to be empty at the end. Exits
+ * with a non-zero status on failure.
+ */
+public class MailboxStressTest {
+
+	private static class Item {
+
+		private final int producer, sequence;
+
+		private Item(int producer, int sequence) {
+			this.producer = producer;
+			this.sequence = sequence;
+		}
+
+	}
+
+	private static final long TIMEOUT = 30000;
+
+	public static void main(String[] args) throws Exception {
+
+		final int producers = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+		final int count = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+
+		final Mailbox<Item> mailbox = new Mailbox<Item>(64);
+
+		// 1 for taken, 2 for removed
+		final AtomicIntegerArray seen = new AtomicIntegerArray(producers * count);
+
+		final AtomicInteger removed = new AtomicInteger();
+
+		final AtomicBoolean done = new AtomicBoolean(false);
+
+		Thread[] threads = new Thread[producers + 2];
+
+		for (int p = 0; p < producers; p++) {
+			final int producer = p;
+			threads[p] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < count; i++)
+						mailbox.put(new Item(producer, i));
+				}
+			});
+		}
+
+		threads[producers] = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (!done.get()) {
+					// the first element is the one that the consumer is taking
+					Iterator<Item> i = mailbox.iterator();
+					if (i.hasNext()) {
+						Item item = i.next();
+						mailbox.replace(item, new Item(item.producer, item.sequence));
+					}
+				}
+			}
+		});
+
+		threads[producers + 1] = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				int k = 0;
+				while (!done.get()) {
+					for (Item item : mailbox) {
+						if (k++ % 7 == 0 && mailbox.remove(item)) {
+							mark(seen, item, count, 2);
+							removed.incrementAndGet();
+						}
+					}
+				}
+			}
+		});
+
+		for (Thread t : threads)
+			t.start();
+
+		long start = System.currentTimeMillis();
+
+		int taken = 0;
+
+		while (taken + removed.get() < producers * count) {
+
+			if (System.currentTimeMillis() - start > TIMEOUT)
+				break;
+
+			Item item = mailbox.poll();
+
+			if (item == null) {
+				Thread.yield();
+				continue;
+			}
+
+			mark(seen, item, count, 1);
+			taken++;
+
+		}
+
+		done.set(true);
+
+		for (Thread t : threads)
+			t.join();
+
+		int missing = 0;
+
+		for (int i = 0; i < seen.length(); i++)
+			if (seen.get(i) == 0)
+				missing++;
+
+		System.out.printf("%d elements, %d taken, %d removed, %d missing, size %d, %d ms%n", producers * count,
+				taken, removed.get(), missing, mailbox.size(), System.currentTimeMillis() - start);
+
+		if (missing > 0 || mailbox.size() != 0 || mailbox.poll() != null) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+
+		System.out.println("OK");
+
+	}
+
+	private static void mark(AtomicIntegerArray seen, Item item, int count, int how) {
+
+		if (!seen.compareAndSet(item.producer * count + item.sequence, 0, how))
+			throw new IllegalStateException("Element " + item.producer + "/" + item.sequence + " seen twice");
+
+	}
+
+}
@@ -0,0 +1,173 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.protocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import org.grid.protocol.Message.AcknowledgeMessage;
+import org.grid.protocol.Message.InitializeMessage;
+import org.grid.protocol.Message.RegisterMessage;
+import org.grid.protocol.ProtocolSocket.Encoding;
+
+/**
+ * Connects a binary client to a socket that is served by a selector loop. The
+ * server answers the register message on the loop thread and then sends a
+ * second message from another thread, like the dispatcher does with the
+ * acknowledgement and the initialization of an agent. Both messages have to
+ * arrive without any further traffic. A client whose message makes the handler
+ * fail must only lose its own connection, the next client still has to be
+ * answered. Exits with a non-zero status on failure.
+ */
+public class SelectorLoopbackTest {
+
+	private static final long TIMEOUT = 5000;
+
+	private static final String FAIL = "fail";
+
+	public static void main(String[] args) throws Exception {
+
+		int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+
+		final SelectorLoop loop = new SelectorLoop("Loopback selector");
+
+		int port = server.socket().getLocalPort();
+
+		for (int i = 0; i < rounds; i++)
+			round(server, loop, i);
+
+		// the handler throws for this client
+		Socket socket = new Socket("127.0.0.1", server.socket().getLocalPort());
+
+		ProtocolSocket served = accept(server.accept(), loop);
+
+		ProtocolSocket client = new ProtocolSocket(socket, Encoding.BINARY);
+		client.start();
+
+		client.sendMessage(new RegisterMessage(FAIL, "", 0));
+
+		Message reply = await(client);
+
+		if (reply != null) {
+			System.out.printf("Failing handler answered with %s%n", name(reply));
+			System.exit(1);
+		}
+
+		client.close();
+		served.close();
+
+		round(server, loop, rounds);
+
+		System.out.println("OK");
+		System.exit(0);
+
+	}
+
+	private static void round(ServerSocketChannel server, SelectorLoop loop, int i) throws Exception {
+
+		Socket socket = new Socket("127.0.0.1", server.socket().getLocalPort());
+
+		final ProtocolSocket served = accept(server.accept(), loop);
+
+		ProtocolSocket client = new ProtocolSocket(socket, Encoding.BINARY);
+		client.start();
+
+		long start = System.currentTimeMillis();
+
+		client.sendMessage(new RegisterMessage("loopback", "", 0));
+
+		Message ack = await(client);
+		Message init = await(client);
+
+		if (!(ack instanceof AcknowledgeMessage) || !(init instanceof InitializeMessage)) {
+			System.out.printf("Round %d failed: received %s and %s%n", i, name(ack), name(init));
+			System.exit(1);
+		}
+
+		System.out.printf("Round %d: %d ms%n", i, System.currentTimeMillis() - start);
+
+		client.close();
+		served.close();
+
+	}
+
+	private static ProtocolSocket accept(SocketChannel channel, SelectorLoop loop) throws IOException {
+
+		ProtocolSocket served = new ProtocolSocket(channel, loop) {
+
+			@Override
+			protected void handleMessage(Message message) {
+
+				if (!(message instanceof RegisterMessage))
+					return;
+
+				if (FAIL.equals(((RegisterMessage) message).getTeam()))
+					throw new IllegalStateException("Handler failed on purpose");
+
+				// answered on the loop thread
+				sendMessage(new AcknowledgeMessage());
+
+				final ProtocolSocket socket = this;
+
+				// followed by a message from another thread, as the game does
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						socket.sendMessage(new InitializeMessage(1, 256, 10));
+					}
+				}).start();
+
+			}
+
+		};
+
+		served.start();
+
+		return served;
+
+	}
+
+	private static Message await(ProtocolSocket socket) throws InterruptedException {
+
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+
+		while (System.currentTimeMillis() < deadline) {
+
+			Message message = socket.receiveMessage();
+
+			if (message != null)
+				return message;
+
+			Thread.sleep(1);
+		}
+
+		return null;
+
+	}
+
+	private static String name(Message message) {
+		return message == null ? "nothing" : message.getClass().getSimpleName();
+	}
+
+}
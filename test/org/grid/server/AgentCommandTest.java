@@ -0,0 +1,117 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.awt.Color;
+
+import org.grid.protocol.Message.Direction;
+
+/**
+ * Checks that the moves an agent receives during one step end in the same
+ * direction as calling {@link Agent#setDirection(Direction)} for each of them
+ * in order, which is what the server did before the moves were stored without
+ * locking. All sequences of up to four moves are tried from every direction.
+ * Exits with a non-zero status on failure.
+ */
+public class AgentCommandTest {
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private static final int LENGTH = 4;
+
+	private static Team team = new Team("test", Color.red);
+
+	private static int failures = 0;
+
+	public static void main(String[] args) {
+
+		// an agent moving up turns left and then back down
+		check(Direction.UP, new Direction[] { Direction.LEFT, Direction.DOWN });
+
+		int count = 0;
+
+		for (Direction start : DIRECTIONS) {
+			for (int length = 0; length <= LENGTH; length++) {
+
+				int sequences = 1;
+				for (int i = 0; i < length; i++)
+					sequences *= DIRECTIONS.length;
+
+				for (int s = 0; s < sequences; s++) {
+
+					Direction[] moves = new Direction[length];
+
+					for (int i = 0, r = s; i < length; i++, r /= DIRECTIONS.length)
+						moves[i] = DIRECTIONS[r % DIRECTIONS.length];
+
+					check(start, moves);
+
+					count++;
+				}
+
+			}
+		}
+
+		System.out.printf("%d sequences, %d failures\n", count, failures);
+
+		if (failures > 0)
+			System.exit(1);
+
+	}
+
+	private static void check(Direction start, Direction[] moves) {
+
+		Agent expected = new Agent(team, 1);
+		Agent actual = new Agent(team, 2);
+
+		expected.setDirection(start);
+		actual.setDirection(start);
+
+		for (int i = 0; i < moves.length; i++) {
+			expected.setDirection(moves[i]);
+			if (actual.command(moves[i]) != (i == 0)) {
+				System.out.printf("%s %s: move %d is not reported correctly\n", start, toString(moves), i);
+				failures++;
+			}
+		}
+
+		actual.applyCommand();
+
+		if (expected.getDirection() != actual.getDirection()) {
+			System.out.printf("%s %s: expected %s, got %s\n", start, toString(moves),
+					expected.getDirection(), actual.getDirection());
+			failures++;
+		}
+
+	}
+
+	private static String toString(Direction[] moves) {
+
+		StringBuilder builder = new StringBuilder("[");
+
+		for (int i = 0; i < moves.length; i++) {
+			if (i > 0)
+				builder.append(", ");
+			builder.append(moves[i]);
+		}
+
+		return builder.append("]").toString();
+
+	}
+
+}
@@ -0,0 +1,185 @@
+/*
+ *  AgentField - a simple capture-the-flag simulation for distributed intelligence
+ *  Copyright (C) 2011 Luka Cehovin <http://vicos.fri.uni-lj.si/lukacu>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.grid.server;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.grid.protocol.Position;
+import org.grid.protocol.Message.Direction;
+
+/**
+ * Measures the move phase of a large field with and without tiles. Every run
+ * starts from the same placement of agents and uses the same directions, the
+ * time per step is reported together with the speedup over the sequential
+ * moves. The tiled runs have to end with the same positions for any number of
+ * threads, otherwise the program exits with a non-zero status.
+ *
+ * Arguments (all optional): size of the field, number of teams, agents per
+ * team, steps, size of a tile, and the numbers of threads to measure.
+ */
+public class FieldTilesBenchmark {
+
+	private static final Direction[] DIRECTIONS = { Direction.UP, Direction.DOWN, Direction.LEFT, Direction.RIGHT };
+
+	private static class BenchmarkTeam extends Team {
+
+		private List<Agent> agents = new ArrayList<Agent>();
+
+		private BenchmarkTeam(String name) {
+			super(name, Color.red);
+		}
+
+		@Override
+		public List<Agent> getAgents() {
+			return agents;
+		}
+
+	}
+
+	public static void main(String[] args) throws Exception {
+
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int teams = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+		int agents = args.length > 2 ? Integer.parseInt(args[2]) : 250;
+		int steps = args.length > 3 ? Integer.parseInt(args[3]) : 500;
+		int tile = args.length > 4 ? Integer.parseInt(args[4]) : 64;
+
+		int processors = Runtime.getRuntime().availableProcessors();
+
+		List<Integer> threads = new ArrayList<Integer>();
+
+		if (args.length > 5) {
+			for (int i = 5; i < args.length; i++)
+				threads.add(Integer.parseInt(args[i]));
+		} else {
+			for (int t = 1; t <= processors; t *= 2)
+				threads.add(t);
+		}
+
+		System.out.printf("field %dx%d, %d x %d agents, %d steps, tiles of %d, %d processors%n", size, size,
+				teams, agents, steps, tile, processors);
+
+		// the first runs warm up the compiler
+		run(size, teams, agents, steps / 5, 0, 0);
+		run(size, teams, agents, steps / 5, tile, threads.get(0));
+
+		Result sequential = run(size, teams, agents, steps, 0, 0);
+
+		System.out.printf("sequential: %.1f us/step, %d alive%n", sequential.time, sequential.alive);
+
+		Result first = null;
+
+		for (int t : threads) {
+
+			Result r = run(size, teams, agents, steps, tile, t);
+
+			System.out.printf("tiled, %d threads: %.1f us/step, speedup %.2f, %d alive%n", t, r.time,
+					sequential.time / r.time, r.alive);
+
+			if (first == null)
+				first = r;
+			else if (first.hash != r.hash) {
+				System.out.println("FAILED: the outcome depends on the number of threads");
+				System.exit(1);
+			}
+		}
+
+	}
+
+	private static class Result {
+
+		private double time;
+
+		private int alive;
+
+		private long hash;
+
+	}
+
+	private static Result run(int size, int teams, int agents, int steps, int tile, int threads) {
+
+		Field field = new Field(size, size);
+
+		Random random = new Random(3);
+
+		List<Team> list = new ArrayList<Team>();
+
+		int id = 1;
+
+		for (int t = 0; t < teams; t++) {
+
+			BenchmarkTeam team = new BenchmarkTeam("team" + t);
+
+			for (int i = 0; i < agents; i++) {
+				Agent a = new Agent(team, id++);
+				field.putBodyCloseTo(a, new Position(random.nextInt(size), random.nextInt(size)));
+				team.agents.add(a);
+			}
+
+			list.add(team);
+		}
+
+		ForkJoinPool pool = tile > 0 ? new ForkJoinPool(threads) : null;
+
+		FieldTiles tiles = tile > 0 ? new FieldTiles(field, tile, pool) : null;
+
+		long start = System.nanoTime();
+
+		for (int s = 0; s < steps; s++) {
+
+			if (s % 10 == 0) {
+				for (Team t : list)
+					for (Agent a : t.getAgents())
+						a.setDirection(DIRECTIONS[random.nextInt(DIRECTIONS.length)]);
+			}
+
+			if (tiles != null)
+				tiles.move(list);
+			else {
+				for (Team t : list)
+					for (Agent a : t.getAgents())
+						a.move(field);
+			}
+		}
+
+		Result result = new Result();
+
+		result.time = (System.nanoTime() - start) / 1000.0 / steps;
+
+		for (Team t : list) {
+			for (Agent a : t.getAgents()) {
+
+				if (a.isAlive())
+					result.alive++;
+
+				result.hash = result.hash * 31 + field.getBodyX(a) * 7919 + field.getBodyY(a);
+			}
+		}
+
+		if (pool != null)
+			pool.shutdown();
+
+		return result;
+
+	}
+
+}